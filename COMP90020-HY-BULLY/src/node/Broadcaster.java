@@ -0,0 +1,153 @@
+package node;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Logger;
+
+/**
+ * Fan-out engine for sending one message to every peer at once.
+ * The message is serialized once and queued on every peer's outbound queue, so all peers
+ * are written concurrently by their own writers instead of one after the other.
+ * Records how long it takes until the last peer has been written.
+ */
+public class Broadcaster {
+	private static final Logger logger = Logger.getLogger(Broadcaster.class.getName());
+
+	private final Node node;
+	private final LatencyHistogram fanOutLatency = new LatencyHistogram();
+
+	public Broadcaster(Node node) {
+		this.node = node;
+	}
+
+	/**
+	 * Sends a message to every known peer except this node and the given ids.
+	 * @param message message to send
+	 * @param excludeIds peers that should not receive it
+	 * @return per-peer outcome of the broadcast
+	 */
+	public Result broadcast(Message message, int... excludeIds) {
+		PeerConfig.Snapshot peers = node.getPeerConfig().snapshot();
+		List<Integer> targets = new ArrayList<>(peers.size());
+		for (int i = 0; i < peers.size(); i++) {
+			if (!isExcluded(peers.idAt(i), excludeIds)) targets.add(peers.idAt(i));
+		}
+		return multicast(message, targets, peers);
+	}
+
+	/**
+	 * Sends a message to the given peers at once. Ids of this node or of unknown peers are skipped.
+	 * @param message message to send
+	 * @param peerIds peers that should receive it
+	 * @return per-peer outcome of the multicast
+	 */
+	public Result multicast(Message message, Collection<Integer> peerIds) {
+		return multicast(message, peerIds, node.getPeerConfig().snapshot());
+	}
+
+	/**
+	 * @param peers membership the ports are looked up in, so the whole fan-out sees one view
+	 */
+	private Result multicast(Message message, Collection<Integer> peerIds, PeerConfig.Snapshot peers) {
+		long start = System.nanoTime();
+		byte[] encoded = node.getMessenger().getCodec().encode(node.getMembershipGossip().piggyback(message));
+		Map<Integer, CompletableFuture<Void>> sends = new HashMap<>();
+		boolean droppable = Messenger.droppable(message.getType());
+
+		for (int peerId : peerIds) {
+			if (peerId == node.getId()) continue;
+			int port = peers.portOf(peerId);
+			if (port == -1) continue;		// not a member
+			sends.put(peerId, node.getMessenger().sendFrame(port, encoded, droppable));
+		}
+
+		Result result = new Result(message.getType(), sends);
+		result.completion().whenComplete((v, e) -> {
+			fanOutLatency.record(System.nanoTime() - start);
+			if (!result.failed().isEmpty()) {
+				logger.fine("Node " + node.getId() + " " + message.getType() + " broadcast failed for peers " + result.failed());
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * @return distribution of time from starting a broadcast until every peer was written or failed
+	 */
+	public LatencyHistogram getFanOutLatency() {
+		return fanOutLatency;
+	}
+
+	private static boolean isExcluded(int peerId, int[] excludeIds) {
+		for (int id : excludeIds) {
+			if (id == peerId) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Per-peer delivery futures of a single broadcast.
+	 */
+	public static class Result {
+		private final Message.Type type;
+		private final Map<Integer, CompletableFuture<Void>> sends;
+		private final CompletableFuture<Void> completion;
+
+		Result(Message.Type type, Map<Integer, CompletableFuture<Void>> sends) {
+			this.type = type;
+			this.sends = Collections.unmodifiableMap(sends);
+			// Completes normally once every send finished, whether it succeeded or not
+			this.completion = CompletableFuture.allOf(sends.values().stream()
+					.map(f -> f.handle((v, e) -> null))
+					.toArray(CompletableFuture[]::new));
+		}
+
+		/**
+		 * @return delivery future for each targeted peer id
+		 */
+		public Map<Integer, CompletableFuture<Void>> sends() {
+			return sends;
+		}
+
+		/**
+		 * @return completes when every peer has been written to or has failed
+		 */
+		public CompletableFuture<Void> completion() {
+			return completion;
+		}
+
+		/**
+		 * @return peers whose send has completed successfully so far
+		 */
+		public Set<Integer> delivered() {
+			Set<Integer> ids = new TreeSet<>();
+			sends.forEach((id, f) -> {
+				if (f.isDone() && !f.isCompletedExceptionally()) ids.add(id);
+			});
+			return ids;
+		}
+
+		/**
+		 * @return peers whose send has failed or was dropped so far
+		 */
+		public Set<Integer> failed() {
+			Set<Integer> ids = new TreeSet<>();
+			sends.forEach((id, f) -> {
+				if (f.isCompletedExceptionally()) ids.add(id);
+			});
+			return ids;
+		}
+
+		@Override
+		public String toString() {
+			return type + " to " + sends.size() + " peers, delivered=" + delivered() + " failed=" + failed();
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package node;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Joiner-side state of a chat history transfer, and the CATCH_UP chunk format.
+ * A chunk's content is a packed list of chats (see {@link ChatBatcher#pack}),
+ * deflated and Base64 encoded so it fits in a message's content.
+ * While the transfer runs, live chats are held back and merged with the history
+ * by sequence number once the last chunk arrives.
+ */
+public class CatchUpTransfer {
+	private final int maxPending;
+	private final TreeMap<Integer, Message> chats = new TreeMap<>();	// history and held back live chats, by seq
+	private final List<Message> unsequenced = new ArrayList<>();
+	private long deadline;
+
+	/**
+	 * @param maxPending chats held before the transfer is cut short
+	 * @param deadline ms timestamp after which the transfer is abandoned unless a chunk arrives
+	 */
+	public CatchUpTransfer(int maxPending, long deadline) {
+		this.maxPending = maxPending;
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Holds back a live chat until the history is complete
+	 * @return false if too many chats are held and the transfer should finish now
+	 */
+	public synchronized boolean hold(Message chat) {
+		if (chat.getSeq() < 0) {
+			unsequenced.add(chat);
+		}
+		else {
+			chats.putIfAbsent(chat.getSeq(), chat);
+		}
+		return chats.size() + unsequenced.size() < maxPending;
+	}
+
+	/**
+	 * Adds the chats of one history chunk
+	 * @param extension ms the deadline is pushed back, since the sender is still streaming
+	 */
+	public synchronized void addChunk(List<Message> history, long now, long extension) {
+		for (Message chat : history) {
+			if (chat.getSeq() >= 0) {
+				chats.putIfAbsent(chat.getSeq(), chat);
+			}
+		}
+		deadline = Math.max(deadline, now + extension);
+	}
+
+	public synchronized boolean expired(long now) {
+		return now > deadline;
+	}
+
+	/**
+	 * @return history and live chats merged in sequence order, followed by unsequenced chats
+	 */
+	public synchronized List<Message> merged() {
+		List<Message> all = new ArrayList<>(chats.values());
+		all.addAll(unsequenced);
+		return all;
+	}
+
+	/**
+	 * Encodes chats as the content of a CATCH_UP chunk
+	 */
+	public static String encodeChunk(List<Message> history) {
+		byte[] raw = ChatBatcher.pack(history).getBytes(StandardCharsets.UTF_8);
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		deflater.setInput(raw);
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 16);
+		byte[] buf = new byte[4096];
+		while (!deflater.finished()) {
+			out.write(buf, 0, deflater.deflate(buf));
+		}
+		deflater.end();
+		return Base64.getEncoder().encodeToString(out.toByteArray());
+	}
+
+	/**
+	 * Restores the chats of a CATCH_UP chunk
+	 * @throws IllegalArgumentException if the chunk is corrupt
+	 */
+	public static List<Message> decodeChunk(String content) {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(Base64.getDecoder().decode(content));
+			ByteArrayOutputStream out = new ByteArrayOutputStream(content.length() * 2);
+			byte[] buf = new byte[4096];
+			while (!inflater.finished()) {
+				int n = inflater.inflate(buf);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IllegalArgumentException("Truncated catch-up chunk");
+				}
+				out.write(buf, 0, n);
+			}
+			return ChatBatcher.unpack(out.toString(StandardCharsets.UTF_8));
+		}
+		catch (DataFormatException e) {
+			throw new IllegalArgumentException("Corrupt catch-up chunk", e);
+		}
+		finally {
+			inflater.end();
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package node;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Leader-side coalescing of chat broadcasts. Chats arriving within a short window are
+ * sent to every peer as one CHAT_BATCH frame instead of one CHAT frame each, trading a
+ * bounded delay for far fewer writes. A batch is flushed when the window since its first
+ * message expires, or earlier once it holds maxMessages messages or maxBytes of packed chats.
+ * A chat that would take a batch past maxBytes goes into the next batch, so every batch fits
+ * a frame whatever the content's characters or escaping.
+ */
+public class ChatBatcher {
+	private static final Logger logger = Logger.getLogger(ChatBatcher.class.getName());
+
+	public static final long DEFAULT_WINDOW_MICROS = 500;
+	public static final int DEFAULT_MAX_MESSAGES = 64;
+	public static final int DEFAULT_MAX_BYTES = MessageCodec.MAX_FRAME_LENGTH / 2;	// rest of the frame is left for header and gossip
+
+	private final Node node;
+	private final long windowMicros;
+	private final int maxMessages;
+	private final int maxBytes;
+	private final ScheduledExecutorService timer;
+
+	// Guarded by this
+	private List<Message> pending = new ArrayList<>();
+	private int pendingBytes = 0;
+	private ScheduledFuture<?> windowTimer;
+
+	/**
+	 * @param timer scheduler running the window timer
+	 * @param windowMicros longest a chat waits for others to join its batch; 0 disables batching
+	 * @param maxMessages flush once this many chats are pending
+	 * @param maxBytes most UTF-8 bytes of packed chats in one batch
+	 */
+	public ChatBatcher(Node node, ScheduledExecutorService timer, long windowMicros, int maxMessages, int maxBytes) {
+		this.node = node;
+		this.timer = timer;
+		this.windowMicros = windowMicros;
+		this.maxMessages = maxMessages;
+		this.maxBytes = maxBytes;
+	}
+
+	public ChatBatcher(Node node, ScheduledExecutorService timer) {
+		this(node, timer, DEFAULT_WINDOW_MICROS, DEFAULT_MAX_MESSAGES, DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * Queues a chat for broadcast to all peers
+	 * @param message chat to broadcast
+	 */
+	public void add(Message message) {
+		if (windowMicros <= 0) {
+			node.getBroadcaster().broadcast(message);
+			return;
+		}
+		int size = packedSize(message);
+		List<Message> full = null;
+		List<Message> ready = null;
+		synchronized (this) {
+			if (!pending.isEmpty() && pendingBytes + size > maxBytes) {
+				full = takePending();
+			}
+			pending.add(message);
+			pendingBytes += size;
+			if (pending.size() >= maxMessages || pendingBytes >= maxBytes) {
+				ready = takePending();
+			}
+			else if (windowTimer == null) {
+				windowTimer = timer.schedule(this::flush, windowMicros, TimeUnit.MICROSECONDS);
+			}
+		}
+		if (full != null) {
+			send(full);
+		}
+		if (ready != null) {
+			send(ready);
+		}
+	}
+
+	/**
+	 * Broadcasts whatever is pending right away
+	 */
+	public void flush() {
+		List<Message> ready;
+		synchronized (this) {
+			ready = takePending();
+		}
+		send(ready);
+	}
+
+	private List<Message> takePending() {
+		List<Message> ready = pending;
+		pending = new ArrayList<>();
+		pendingBytes = 0;
+		if (windowTimer != null) {
+			windowTimer.cancel(false);
+			windowTimer = null;
+		}
+		return ready;
+	}
+
+	private void send(List<Message> ready) {
+		if (ready.isEmpty()) return;
+		if (ready.size() == 1) {
+			node.getBroadcaster().broadcast(ready.get(0));
+			return;
+		}
+		logger.fine("Node " + node.getId() + " broadcasting batch of " + ready.size() + " chats");
+		node.getBroadcaster().broadcast(new Message(Message.Type.CHAT_BATCH, node.getId(), -1, pack(ready)));
+	}
+
+	/**
+	 * Serializes chats into CHAT_BATCH content, preserving their order
+	 */
+	public static String pack(List<Message> chats) {
+		JSONArray array = new JSONArray();
+		for (Message m : chats) {
+			array.put(entry(m));
+		}
+		return array.toString();
+	}
+
+	/**
+	 * @return UTF-8 bytes the chat adds to packed content, escaping and separator included
+	 */
+	public static int packedSize(Message chat) {
+		return utf8Length(entry(chat).toString()) + 1;
+	}
+
+	private static JSONObject entry(Message m) {
+		JSONObject obj = new JSONObject();
+		obj.put("senderId", m.getSenderId());
+		obj.put("seq", m.getSeq());
+		obj.put("content", m.getContent());
+		if (m.getOutboxId() != 0) {
+			obj.put("outboxId", m.getOutboxId());
+		}
+		return obj;
+	}
+
+	private static int utf8Length(String s) {
+		int bytes = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) bytes++;
+			else if (c < 0x800) bytes += 2;
+			else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				bytes += 4;
+				i++;
+			}
+			else bytes += 3;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Restores the chats of a CHAT_BATCH, in the order they were packed
+	 */
+	public static List<Message> unpack(String content) {
+		JSONArray array = new JSONArray(content);
+		List<Message> chats = new ArrayList<>(array.length());
+		for (int i = 0; i < array.length(); i++) {
+			JSONObject obj = array.getJSONObject(i);
+			chats.add(new Message(Message.Type.CHAT, obj.getInt("senderId"), obj.optInt("seq", -1),
+					obj.optString("content", ""), obj.optLong("outboxId", 0), 0));
+		}
+		return chats;
+	}
+}
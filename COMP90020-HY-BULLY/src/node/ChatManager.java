@@ -1,82 +1,973 @@
 package node;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.json.JSONException;
+
 /**
  * ChatManager handles user chat commands and incoming chat messages,
  * routing them through the elected leader for broadcast.
+ * The leader stamps every chat with a sequence number; followers deliver
+ * chats strictly in that order through a reorder buffer, and ask the leader
+ * to resend (NACK) chats missing from the sequence. A joining node receives
+ * recent history in CATCH_UP chunks while live chats are held back.
+ * Chats this node sends wait in an outbox until they come back sequenced, and are
+ * replayed to whichever node leads next. The leader sequences each author's chats strictly
+ * in outbox order: it drops replays it already sequenced and refuses a chat while an older
+ * one is still missing, which the author's next replay fills in.
+ * An elected leader stamps nothing until it has caught up with the followers: each reports
+ * the next chat it expects, the leader pulls whatever the furthest one delivered beyond its
+ * own position, then tells everyone the sequence it continues from with a SYNC.
  */
 public class ChatManager {
 	private static final Logger logger = Logger.getLogger(ChatManager.class.getName());
+	private static final int REORDER_CAPACITY = 1024;	// chats that may arrive ahead of a gap
+	private static final int RETRANSMIT_CAPACITY = 4096;	// recent chats kept for resends and joiners
+	private static final int MAX_RESEND = 256;			// chats resent for a single NACK
+	private static final int RESEND_MAX_BYTES = MessageCodec.MAX_FRAME_LENGTH / 2;	// packed chats per resend batch
+	private static final int NACK_DELAY = 100;			// ms a gap may exist before asking for a resend
+	private static final int NACK_RETRY = 500;			// ms between repeated NACKs for the same gap
+	private static final int GAP_TIMEOUT = 3000;		// ms before giving up on a missing chat
+	private static final int GAP_CHECK_INTERVAL = 100;	// ms
+	private static final int FSYNC_INTERVAL = 1000;		// ms, for the periodic fsync policy
+	private static final int REPLAY_DISPLAY_LIMIT = 1000;	// most recent stored chats shown on start
+	private static final int CATCH_UP_LIMIT = 1000;		// most recent chats shipped to a joining node
+	private static final int CATCH_UP_CHUNK = 128;		// chats per CATCH_UP message
+	private static final int CATCH_UP_MAX_BYTES = 16 * 1024;	// encoded chunk size before it is split
+	private static final int CATCH_UP_TIMEOUT = 10000;	// ms a joiner waits for history before going live
+	private static final int CATCH_UP_IDLE = 3000;		// ms a joiner waits for the next chunk
+	private static final int HANDOFF_CHATS = 128;		// most recent chats shipped to the successor of a leaving leader
+	private static final int OUTBOX_CAPACITY = 1024;	// own chats waiting to be sequenced
+	// Packed size of the longest chat accepted; leaves room for batching, gossip and base64 history
+	public static final int MAX_CHAT_BYTES = MessageCodec.MAX_FRAME_LENGTH / 4;
+	private static final int OUTBOX_RETRY = 2000;		// ms before unacknowledged chats are sent to the leader again
+	private static final int OUTBOX_TIMEOUT = 30000;	// ms before giving up on an unacknowledged chat
+	private static final int SYNC_TIMEOUT = 1000;		// ms a new leader waits for the followers' reports, and for each pulled resend
+	
     private final Node node;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "chat-timer");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ChatBatcher batcher;
+    private final ReorderBuffer reorderBuffer = new ReorderBuffer(REORDER_CAPACITY);
+    private final RetransmitLog retransmitLog = new RetransmitLog(RETRANSMIT_CAPACITY);
+    private volatile long lastNack = 0;
+    private final ChatStore store;		// null if chat history is not persisted
+    
+    // Joiner state, guarded by catchUpLock; catchUp is null unless a history transfer is running
+    private final Object catchUpLock = new Object();
+    private volatile CatchUpTransfer catchUp;
+    private long catchUpSkip = -1;		// history up to this seq is already in the local log
+    
+    // Leader state, guarded by sequenceLock
+    private final Object sequenceLock = new Object();
+    private int nextSeq = 0;
+    private volatile int successor = -1;	// leaving leader: node that sequences chats from now on, -1 if none
+    private List<Message> held;		// chats for the successor until the HANDOFF is queued, else null
+    private volatile Sync sync;		// elected leader: set until it has caught up with the followers
+    // Highest outbox id sequenced per author, so chats are sequenced once and in outbox order
+    private final Map<Integer, AtomicLong> sequencedIds = new ConcurrentHashMap<>();
+    
+    // Own chats not yet seen sequenced, oldest first, guarded by outbox
+    private final ArrayDeque<Pending> outbox = new ArrayDeque<>();
+    private int outboxLeader = -1;		// leader the whole outbox was last sent to, -1 if none
+    // Ids ascend across restarts, so a leader never mistakes a new chat for a replay
+    private long nextOutboxId = System.currentTimeMillis() * 1000;
+    private final AtomicLong ackedId = new AtomicLong();	// highest own outbox id delivered sequenced
+    private long ackProgress = 0;		// when the outbox last shrank by an ack, guarded by outbox
 
     public ChatManager(Node node) {
         this.node = node;
+        this.batcher = new ChatBatcher(node, timer);
+        this.store = openStore();
+        timer.scheduleAtFixedRate(this::checkGap, GAP_CHECK_INTERVAL, GAP_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        timer.scheduleAtFixedRate(this::checkOutbox, GAP_CHECK_INTERVAL, GAP_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        if (store != null && store.getFsyncPolicy() == ChatStore.FsyncPolicy.PERIODIC) {
+        	timer.scheduleAtFixedRate(store::sync, FSYNC_INTERVAL, FSYNC_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Opens the node's chat log and shows the most recent stored history, which is also
+     * remembered as sequenced in case its authors replay it. A node that becomes leader
+     * later continues the sequence after the last stored chat.
+     */
+    private ChatStore openStore() {
+    	if (node.getChatLogDir() == null) return null;
+    	try {
+    		ChatStore opened = ChatStore.open(node.getChatLogDir(), node.getFsyncPolicy());
+    		for (Message chat : opened.readTail(REPLAY_DISPLAY_LIMIT)) {
+    			node.getMessenger().displayChat(chat);
+    			noteSequenced(chat);
+    		}
+    		nextSeq = (int) (opened.lastSeq() + 1);
+    		return opened;
+    	}
+    	catch (IOException e) {
+    		logger.log(Level.WARNING, "Node " + node.getId() + " could not open chat log, history will not be kept", e);
+    		return null;
+    	}
     }
     
     /**
      * Sends a CHAT message via the leader.
      * If this node is the leader, broadcast the message.
-     * Otherwise, forward the message to the leader.
+     * Otherwise, forward the message to the leader. The chat stays in the outbox until
+     * it comes back sequenced; while no leader is known it only waits there.
      * @param msg message to be sent
+     * @return false if the message was not sent, as it is longer than {@link #MAX_CHAT_BYTES}
+     *         or too many earlier messages are still waiting for the leader
      */
-    public void sendChat(String msg) {
-    	
-        Message message = new Message(Message.Type.CHAT, node.getId(), -1, msg);
-        
-        if (node.isLeader()) {
-        	// Leader displays its own message immediately
-            node.getMessenger().displayChat(message);
-        	logger.info("Broadcasting message from Node " + node.getId());
-            broadcastChat(message);
-        } 
-        else {
-            int leaderId = node.getCurrentLeader();
-            if (leaderId == -1) {
-            	logger.warning("No leader known. Message not sent from Node " + node.getId());
-                // Optionally, trigger an election instead of sending the message
-                // electionManager.initiateElection(); -- but here we focus on chat
-            } 
-            else {
-            	logger.info("Forwarding message from Node " + node.getId() + " to leader Node " + leaderId);
-                int leaderPort = node.getPeerConfig().getPort(leaderId);
-                node.getMessenger().sendMessage(leaderPort, message);
-            }
-        }
+    public boolean sendChat(String msg) {
+    	synchronized (outbox) {
+    		Message message = new Message(Message.Type.CHAT, node.getId(), -1, msg, nextOutboxId, 0);
+    		if (ChatBatcher.packedSize(message) > MAX_CHAT_BYTES) {
+    			logger.warning("Message too long. Message not sent from Node " + node.getId());
+    			return false;
+    		}
+    		prune(System.currentTimeMillis());
+    		if (outbox.size() >= OUTBOX_CAPACITY) {
+    			logger.warning("Outbox full. Message not sent from Node " + node.getId());
+    			return false;
+    		}
+    		nextOutboxId++;
+    		Pending pending = new Pending(message, System.currentTimeMillis());
+    		outbox.add(pending);
+    		
+    		int leaderId = node.getCurrentLeader();
+    		if (leaderId == outboxLeader && leaderId != -1) {
+    			dispatch(List.of(stamp(pending, outbox.size() - 1)), leaderId);
+    		}
+    		else if (leaderId != -1 && leaderId != node.getId()) {
+    			replayOutbox(leaderId);
+    		}
+    		else {
+    			logger.info("No leader announced. Message from Node " + node.getId() + " queued until one is");
+    		}
+    		return true;
+    	}
     }
     
     /**
      * Handle an incoming chat message.
-     * If this node is the leader, broadcast the message to all peers.
-     * Also display the message in the UI.
+     * If this node is the leader, sequence the message and broadcast it to all peers.
+     * Otherwise, deliver it to the UI in the leader's sequence order.
      * @param message received message
      */
     public void handleIncomingChat(Message message) {
-    	// Display the message in the UI
-        node.getMessenger().displayChat(message);
-    	
-        if (node.isLeader()) {
+    	if (successor != -1 && message.getSeq() < 0) {
+    		forwardToSuccessor(message);
+    		return;
+    	}
+        if (node.isLeader() && message.getSeq() >= 0) {
+        	// Pulled from a follower while catching up; anything else is left over from an old leader
+        	if (sync != null) {
+        		receiveSequenced(message);
+        	}
+        }
+        else if (node.isLeader()) {
         	logger.info("Node " + node.getId() + " broadcasting received message from Node " + message.getSenderId());
             broadcastChat(message);
         } 
         else {
         	logger.fine("Node " + node.getId() + " received chat from Node " + message.getSenderId());
+        	receiveSequenced(message);
         }
+        endBatch();
     }
     
     /**
-     * Broadcast the chat message to all peers.
+     * Handle a batch of chats coalesced by the leader, delivering them in sequence order.
+     * @param batch received CHAT_BATCH message
+     */
+    public void handleIncomingBatch(Message batch) {
+    	if (node.isLeader() && sync == null) return;
+    	List<Message> chats;
+    	try {
+    		chats = ChatBatcher.unpack(batch.getContent());
+    	}
+    	catch (JSONException e) {
+    		logger.log(Level.WARNING, "Invalid chat batch from Node " + batch.getSenderId(), e);
+    		return;
+    	}
+    	logger.fine("Node " + node.getId() + " received batch of " + chats.size() + " chats");
+    	for (Message chat : chats) {
+    		receiveSequenced(chat);
+    	}
+    	endBatch();
+    }
+    
+    /**
+     * Handle a NACK from a follower by resending the missing chats still held in the retransmit log.
+     * A follower also serves the NACKs of a newly elected leader pulling the chats it missed.
+     * The NACK's seq is the first missing sequence number and its content the last.
+     * Long resends are split into batches that each fit a frame.
+     * @param nack received NACK message
+     */
+    public void handleNack(Message nack) {
+    	if (!node.isLeader() && nack.getSenderId() != node.getCurrentLeader()) return;
+    	int port = node.getPeerConfig().getPort(nack.getSenderId());
+    	if (port == -1) return;
+    	
+    	long from = nack.getSeq();
+    	long to;
+    	try {
+    		to = Long.parseLong(nack.getContent());
+    	}
+    	catch (NumberFormatException e) {
+    		logger.warning("Invalid NACK from Node " + nack.getSenderId() + ": " + nack.getContent());
+    		return;
+    	}
+    	List<Message> missing = retransmitLog.range(from, Math.min(to, from + MAX_RESEND - 1));
+    	logger.info("Node " + node.getId() + " resending " + missing.size() + " chats (" + from + ".." + to
+    			+ ") to Node " + nack.getSenderId());
+    	resendAll(port, missing);
+    }
+    
+    /**
+     * Resends chats in batches that each fit a frame
+     */
+    private void resendAll(int port, List<Message> missing) {
+    	int start = 0;
+    	int bytes = 0;
+    	for (int i = 0; i < missing.size(); i++) {
+    		int size = ChatBatcher.packedSize(missing.get(i));
+    		if (i > start && bytes + size > RESEND_MAX_BYTES) {
+    			resend(port, missing.subList(start, i));
+    			start = i;
+    			bytes = 0;
+    		}
+    		bytes += size;
+    	}
+    	resend(port, missing.subList(start, missing.size()));
+    }
+    
+    /**
+     * Sends resent chats as one CHAT, or as a CHAT_BATCH if there are several
+     */
+    private void resend(int port, List<Message> chats) {
+    	if (chats.size() == 1) {
+    		node.getMessenger().sendMessage(port, chats.get(0));
+    	}
+    	else if (!chats.isEmpty()) {
+    		node.getMessenger().sendMessage(port,
+    				new Message(Message.Type.CHAT_BATCH, node.getId(), -1, ChatBatcher.pack(chats)));
+    	}
+    }
+    
+    /**
+     * Starts holding back live chats until the chat history of the cluster has been received.
+     * Called by a node before it sends JOIN.
+     */
+    public void beginCatchUp() {
+    	synchronized (catchUpLock) {
+    		catchUpSkip = store == null ? -1 : store.lastSeq();
+    		catchUp = new CatchUpTransfer(REORDER_CAPACITY, System.currentTimeMillis() + CATCH_UP_TIMEOUT);
+    	}
+    }
+    
+    /**
+     * Streams recent chat history to a joining node in compressed CATCH_UP chunks, from the
+     * chat log if there is one and otherwise from the in-memory ring. The joiner can receive
+     * live chats meanwhile; a closing empty chunk with seq 0 ends the transfer.
+     * @param joinerId joining node
+     * @param port port of the joining node
+     */
+    public void sendCatchUp(int joinerId, int port) {
+    	timer.execute(() -> {
+    		long last = lastKnownSeq();
+    		int sent = 0;
+    		long seq = Math.max(0, last - CATCH_UP_LIMIT + 1);
+    		while (last >= 0 && seq <= last) {
+    			List<Message> chunk = history(seq, last);
+    			if (chunk.isEmpty()) {
+    				if (store != null) break;	// nothing further in the log
+    				seq += CATCH_UP_CHUNK;
+    				continue;
+    			}
+    			sendChunk(port, chunk);
+    			sent += chunk.size();
+    			seq = chunk.get(chunk.size() - 1).getSeq() + 1L;
+    		}
+    		node.getMessenger().sendMessage(port,
+    				new Message(Message.Type.CATCH_UP, node.getId(), 0, CatchUpTransfer.encodeChunk(List.of())));
+    		logger.info("Node " + node.getId() + " sent " + sent + " chats of history to Node " + joinerId);
+    	});
+    }
+    
+    /**
+     * Handle a CATCH_UP chunk of chat history. Chunks arriving after the transfer has
+     * finished are offered like resent chats, so anything already delivered is dropped.
+     * @param chunk received CATCH_UP message; seq is 0 on the closing chunk
+     */
+    public void handleCatchUp(Message chunk) {
+    	List<Message> history;
+    	try {
+    		history = CatchUpTransfer.decodeChunk(chunk.getContent());
+    	}
+    	catch (IllegalArgumentException | JSONException e) {
+    		logger.log(Level.WARNING, "Invalid catch-up chunk from Node " + chunk.getSenderId(), e);
+    		return;
+    	}
+    	synchronized (catchUpLock) {
+    		if (catchUp != null) {
+    			catchUp.addChunk(history, System.currentTimeMillis(), CATCH_UP_IDLE);
+    			if (chunk.getSeq() == 0) {
+    				finishCatchUp();
+    			}
+    			return;
+    		}
+    	}
+    	for (Message chat : history) {
+    		receiveSequenced(chat);
+    	}
+    	endBatch();
+    }
+    
+    /**
+     * Stops the chat timers and forces the chat log to disk, e.g. when the node stops.
+     */
+    public void close() {
+    	timer.shutdownNow();
+    	if (store != null) {
+    		store.sync();
+    	}
+    }
+    
+    /**
+     * Learns the leader's next sequence number from its heartbeat, so chats lost at the
+     * end of the stream are detected without waiting for a later chat. Does not allocate.
+     * @param leaderNext next sequence number the leader will stamp, or -1 if not sent
+     */
+    public void leaderProgress(int leaderNext) {
+    	if (leaderNext >= 0 && !node.isLeader()) {
+    		reorderBuffer.noteLeaderNext(leaderNext);
+    	}
+    }
+    
+    /**
+     * Called by the node whenever its view of the leader changes. A follower keeps the chats
+     * waiting for a gap and reports the next chat it expects to an elected leader, whose SYNC
+     * then says which of them the stream keeps. An elected leader stamps nothing until it has
+     * caught up with those reports; a successor continues right after the handed-over chats.
+     * @param leaderId new leader, or -1 if unknown
+     * @param continued true if the new leader took the sequence over from the previous one,
+     *                  so the stream goes on without a SYNC and any gap is NACKed to the new leader
+     */
+    public void leaderChanged(int leaderId, boolean continued) {
+    	synchronized (sequenceLock) {
+    		if (leaderId == node.getId()) {
+    			nextSeq = (int) Math.max(nextSeq, reorderBuffer.nextExpected());
+    			if (continued) {
+    				reorderBuffer.resync(nextSeq, this::deliver);
+    			}
+    			else {
+    				sync = new Sync(System.currentTimeMillis());
+    			}
+    		}
+    		else {
+    			sync = null;	// chats waiting for it are replayed to the new leader by their authors
+    		}
+    	}
+    	if (leaderId != -1 && leaderId != node.getId() && !continued) {
+    		Message report = new Message(Message.Type.SYNC, node.getId(), (int) reorderBuffer.nextExpected(), "");
+    		timer.execute(() -> sendTo(leaderId, report));
+    	}
+    	synchronized (outbox) {
+    		prune(System.currentTimeMillis());
+    		if (leaderId == -1 || leaderId == node.getId()) {
+    			outboxLeader = -1;		// own chats wait for leadershipAnnounced()
+    		}
+    		else if (leaderId != outboxLeader) {
+    			replayOutbox(leaderId);
+    		}
+    	}
+    }
+    
+    /**
+     * Called by a new leader once its COORDINATOR is on the way. Its own queued chats are
+     * sequenced only now, as followers drop chats sequenced before the COORDINATOR; an
+     * elected leader holds them, like everyone else's, until it has synced.
+     * @param followers peers told of the new leader, whose reports an elected leader waits for
+     */
+    public void leadershipAnnounced(Collection<Integer> followers) {
+    	synchronized (sequenceLock) {
+    		if (sync != null) {
+    			sync.awaited = followers;
+    		}
+    	}
+    	timer.execute(() -> {
+    		checkSync(System.currentTimeMillis());
+    		synchronized (outbox) {
+    			if (node.isLeader() && outboxLeader != node.getId()) {
+    				prune(System.currentTimeMillis());
+    				replayOutbox(node.getId());
+    			}
+    		}
+    	});
+    }
+    
+    /**
+     * Leaving leader: stops sequencing chats and sends the successor a HANDOFF carrying the
+     * next sequence number and the most recent chats. Chats sent to this node from now on
+     * are forwarded to the successor, behind the HANDOFF. May be called again with another
+     * successor if the HANDOFF could not be sent.
+     * @param term term in which this node was elected
+     * @return completes when the HANDOFF has been written, null if the successor is not a known peer
+     */
+    public CompletableFuture<Void> handOff(int successorId, long term) {
+    	int port = node.getPeerConfig().getPort(successorId);
+    	if (port == -1) return null;
+    	Message handoff;
+    	synchronized (sequenceLock) {
+    		int next = nextSeq;
+    		List<Message> recent = retransmitLog.range(Math.max(0, next - HANDOFF_CHATS), next - 1);
+    		String content = CatchUpTransfer.encodeChunk(recent);
+    		while (content.length() > CATCH_UP_MAX_BYTES && recent.size() > 1) {
+    			recent = recent.subList(recent.size() / 2, recent.size());
+    			content = CatchUpTransfer.encodeChunk(recent);
+    		}
+    		handoff = new Message(Message.Type.HANDOFF, node.getId(), next, content, term);
+    		successor = successorId;
+    		if (held == null) {
+    			held = new ArrayList<>();
+    		}
+    	}
+    	// Nothing is sequenced any more. Queued in this order on the successor's connection:
+    	// the last sequenced chats, the HANDOFF, then the chats forwarded meanwhile
+    	batcher.flush();
+    	CompletableFuture<Void> sent = node.getMessenger().sendMessage(port, handoff);
+    	while (true) {
+    		List<Message> forward;
+    		synchronized (sequenceLock) {
+    			forward = held;
+    			held = forward.isEmpty() ? null : new ArrayList<>();
+    		}
+    		if (forward.isEmpty()) break;
+    		for (Message chat : forward) {
+    			forward(chat, successorId);
+    		}
+    	}
+    	return sent;
+    }
+    
+    /**
+     * Successor: delivers the handed-over chats this node has missed and continues the
+     * sequence where the leaving leader stopped. Called before taking over leadership.
+     * @param handoff HANDOFF from the leaving leader
+     */
+    public void takeOver(Message handoff) {
+    	List<Message> recent;
+    	try {
+    		recent = CatchUpTransfer.decodeChunk(handoff.getContent());
+    	}
+    	catch (IllegalArgumentException | JSONException e) {
+    		logger.log(Level.WARNING, "Invalid handoff from Node " + handoff.getSenderId(), e);
+    		recent = new ArrayList<>();
+    	}
+    	for (Message chat : recent) {
+    		receiveSequenced(chat);
+    	}
+    	endBatch();
+    	synchronized (sequenceLock) {
+    		nextSeq = Math.max(nextSeq, handoff.getSeq());
+    	}
+    }
+    
+    /**
+     * Handle a SYNC. At an elected leader it is a follower's report of the next chat it expects;
+     * a report arriving after the leader synced is answered at once. At a follower it is the
+     * leader's next sequence number: buffered chats from it on are dropped, as the leader stamps
+     * those numbers afresh, and chats before it that are still missing are NACKed.
+     * @param msg received SYNC message
+     */
+    public void handleSync(Message msg) {
+    	if (node.isLeader()) {
+    		boolean late;
+    		synchronized (sequenceLock) {
+    			late = sync == null;
+    			if (!late) {
+    				sync.reported.put(msg.getSenderId(), (long) msg.getSeq());
+    			}
+    		}
+    		if (late) {
+    			int next = nextSequence();
+    			if (msg.getSeq() > next) {
+    				logger.warning("Node " + node.getId() + " already synced at sequence " + next + ", Node "
+    						+ msg.getSenderId() + " reported chats up to " + (msg.getSeq() - 1));
+    			}
+    			sendTo(msg.getSenderId(), new Message(Message.Type.SYNC, node.getId(), next, ""));
+    		}
+    		else {
+    			checkSync(System.currentTimeMillis());
+    		}
+    	}
+    	else if (msg.getSenderId() == node.getCurrentLeader()) {
+    		if (reorderBuffer.nextExpected() > msg.getSeq()) {
+    			logger.warning("Node " + node.getId() + " delivered chats up to " + (reorderBuffer.nextExpected() - 1)
+    					+ ", beyond where leader Node " + msg.getSenderId() + " continues");
+    		}
+    		reorderBuffer.truncate(msg.getSeq());
+    	}
+    }
+    
+    /**
+     * @return sequence number the next broadcast chat will carry, if this node is leader
+     */
+    public int nextSequence() {
+    	synchronized (sequenceLock) {
+    		return nextSeq;
+    	}
+    }
+    
+    private void receiveSequenced(Message chat) {
+    	if (catchUp != null) {
+    		synchronized (catchUpLock) {
+    			if (catchUp != null) {
+    				if (!catchUp.hold(chat)) {
+    					logger.warning("Node " + node.getId() + " holding too many chats, ending catch-up early");
+    					finishCatchUp();
+    				}
+    				return;
+    			}
+    		}
+    	}
+    	if (chat.getSeq() < 0) {
+    		// Not sequenced by a leader (e.g. forwarded to us while leadership changed).
+    		// If it has an outbox id its author replays it to the new leader
+    		if (chat.getOutboxId() == 0) {
+    			deliver(chat);
+    		}
+    		return;
+    	}
+    	reorderBuffer.offer(chat, this::deliver);
+    }
+    
+    /**
+     * Delivers the received history merged with the live chats held back meanwhile,
+     * and syncs the reorder buffer to the oldest of them so later gaps are NACKed.
+     * History already in the local log is skipped, unless the log holds another run's chats.
+     */
+    private void finishCatchUp() {
+    	synchronized (catchUpLock) {
+    		CatchUpTransfer transfer = catchUp;
+    		if (transfer == null) return;
+    		
+    		List<Message> merged = transfer.merged();
+    		Message newestKept = null;
+    		for (Message chat : merged) {
+    			if (chat.getSeq() >= 0 && chat.getSeq() <= catchUpSkip) {
+    				newestKept = chat;
+    			}
+    		}
+    		if (newestKept != null && !inLog(newestKept)) {
+    			logger.info("Node " + node.getId() + " chat log is from another run, keeping all history");
+    			catchUpSkip = -1;
+    		}
+    		int delivered = 0;
+    		boolean synced = false;
+    		for (Message chat : merged) {
+    			if (chat.getSeq() < 0) {
+    				deliver(chat);
+    				delivered++;
+    			}
+    			else if (chat.getSeq() > catchUpSkip) {
+    				if (!synced) {
+    					reorderBuffer.resync(chat.getSeq(), this::deliver);
+    					synced = true;
+    				}
+    				reorderBuffer.offer(chat, this::deliver);
+    				delivered++;
+    			}
+    		}
+    		endBatch();
+    		catchUp = null;		// live chats now go straight to the reorder buffer
+    		logger.info("Node " + node.getId() + " caught up with " + delivered + " chats");
+    	}
+    }
+    
+    /**
+     * @return true if the chat log's current run holds this chat at its sequence number
+     */
+    private boolean inLog(Message chat) {
+    	List<Message> stored = store == null ? List.of() : store.readFrom(chat.getSeq(), 1);
+    	return !stored.isEmpty() && stored.get(0).getSeq() == chat.getSeq()
+    			&& stored.get(0).getSenderId() == chat.getSenderId()
+    			&& stored.get(0).getContent().equals(chat.getContent());
+    }
+    
+    /**
+     * @return up to CATCH_UP_CHUNK chats with sequence numbers from..last, in order
+     */
+    private List<Message> history(long from, long last) {
+    	if (store != null) {
+    		List<Message> chats = store.readFrom(from, CATCH_UP_CHUNK);
+    		chats.removeIf(chat -> chat.getSeq() > last);
+    		return chats;
+    	}
+    	return retransmitLog.range(from, Math.min(last, from + CATCH_UP_CHUNK - 1));
+    }
+    
+    private long lastKnownSeq() {
+    	return Math.max(store == null ? -1 : store.lastSeq(), reorderBuffer.nextExpected() - 1);
+    }
+    
+    private void sendChunk(int port, List<Message> chunk) {
+    	String content = CatchUpTransfer.encodeChunk(chunk);
+    	if (content.length() > CATCH_UP_MAX_BYTES && chunk.size() > 1) {
+    		sendChunk(port, chunk.subList(0, chunk.size() / 2));
+    		sendChunk(port, chunk.subList(chunk.size() / 2, chunk.size()));
+    		return;
+    	}
+    	node.getMessenger().sendMessage(port, new Message(Message.Type.CATCH_UP, node.getId(), 1, content));
+    }
+    
+    private void deliver(Message chat) {
+    	node.getMessenger().displayChat(chat);
+    	if (chat.getSeq() >= 0) {
+    		retransmitLog.record(chat);
+    		noteSequenced(chat);
+    		if (chat.getOutboxId() != 0 && chat.getSenderId() == node.getId()) {
+    			ackedId.accumulateAndGet(chat.getOutboxId(), Math::max);
+    		}
+    		if (store != null) {
+    			store.append(chat);
+    		}
+    	}
+    }
+    
+    private void noteSequenced(Message chat) {
+    	if (chat.getOutboxId() != 0) {
+    		sequencedIds.computeIfAbsent(chat.getSenderId(), k -> new AtomicLong()).accumulateAndGet(chat.getOutboxId(), Math::max);
+    	}
+    }
+    
+    private void endBatch() {
+    	if (store != null) {
+    		store.endBatch();
+    	}
+    }
+    
+    /**
+     * Asks the leader to resend a gap that has been open for a while, and gives up on it
+     * once it has been open too long.
+     */
+    private void checkGap() {
+    	long now = System.currentTimeMillis();
+    	checkSync(now);
+    	CatchUpTransfer transfer = catchUp;
+    	if (transfer != null && transfer.expired(now)) {
+    		logger.warning("Node " + node.getId() + " received no further history, ending catch-up");
+    		finishCatchUp();
+    	}
+    	long age = reorderBuffer.gapAge(now);
+    	if (age > GAP_TIMEOUT) {
+    		logger.warning("Node " + node.getId() + " giving up on missing chat before sequence "
+    				+ reorderBuffer.nextExpected() + " after " + age + "ms");
+    		reorderBuffer.skipGap(this::deliver);
+    	}
+    	else if (age > NACK_DELAY && now - lastNack > NACK_RETRY) {
+    		long[] missing = reorderBuffer.missingRange();
+    		int leaderId = node.getCurrentLeader();
+    		int leaderPort = node.getPeerConfig().getPort(leaderId);
+    		if (missing == null || leaderPort == -1 || node.isLeader()) return;
+    		
+    		logger.info("Node " + node.getId() + " missing chats " + missing[0] + ".." + missing[1]
+    				+ ", sending NACK to leader Node " + leaderId);
+    		Message nack = new Message(Message.Type.NACK, node.getId(), (int) missing[0], String.valueOf(missing[1]));
+    		node.getMessenger().sendMessage(leaderPort, nack);
+    		lastNack = now;
+    	}
+    }
+    
+    /**
+     * Stamps the next sequence number on a chat, delivers it locally and broadcasts it to all
+     * peers, coalesced with other chats arriving at the same time. Once leadership is being
+     * handed over, the chat goes to the successor instead.
      */
     private void broadcastChat(Message message) {
     	logger.fine("Broadcasting message from Node " + message.getSenderId() + " to all peers");
+    	int handoff;
+    	synchronized (sequenceLock) {
+    		handoff = successor;
+    		if (handoff == -1 && sync != null) {
+    			sync.waiting.add(message);
+    			return;
+    		}
+    		if (handoff == -1) {
+    			if (!inOrder(message)) {
+    				return;
+    			}
+    			Message sequenced = new Message(Message.Type.CHAT, message.getSenderId(), nextSeq++, message.getContent(),
+    					message.getOutboxId(), 0);
+    			reorderBuffer.markDelivered(sequenced.getSeq());
+    			deliver(sequenced);
+    			batcher.add(sequenced);
+    		}
+    	}
+    	if (handoff != -1) {
+    		forwardToSuccessor(message);
+    	}
+    }
+    
+    /**
+     * An author's chat may be sequenced if it follows the last one sequenced, or if it heads the
+     * author's outbox, meaning every older chat was acknowledged or given up.
+     * Caller holds sequenceLock.
+     * @return false if the chat was sequenced before, or an older chat is still missing
+     */
+    private boolean inOrder(Message chat) {
+    	long id = chat.getOutboxId();
+    	if (id == 0) return true;
+    	AtomicLong last = sequencedIds.get(chat.getSenderId());
+    	if (last != null && id <= last.get()) {
+    		logger.fine("Node " + node.getId() + " dropping replayed chat from Node " + chat.getSenderId());
+    		return false;
+    	}
+    	if (chat.getPendingAhead() == 0 || (last != null && id == last.get() + 1)) return true;
+    	logger.fine("Node " + node.getId() + " refusing chat from Node " + chat.getSenderId() + " until older ones arrive");
+    	return false;
+    }
+    
+    /**
+     * Elected leader: once every follower has reported, or the reports timed out, pulls the chats
+     * the furthest follower delivered beyond this node from it, then continues the sequence after
+     * them. Followers that reported less are sent what they lack ahead of the SYNC, so it reaches
+     * them before any newly stamped chat. The chats received meanwhile are sequenced only then.
+     */
+    private void checkSync(long now) {
+    	Message nack = null;
+    	int source = -1;
+    	synchronized (sequenceLock) {
+    		Sync s = sync;
+    		if (s == null) return;
+    		if (s.target < 0) {
+    			boolean all = s.awaited != null && s.reported.keySet().containsAll(s.awaited);
+    			if (!all && now - s.started < SYNC_TIMEOUT) return;
+    			s.target = reorderBuffer.nextExpected();
+    			for (Map.Entry<Integer, Long> report : s.reported.entrySet()) {
+    				if (report.getValue() > s.target) {
+    					s.target = report.getValue();
+    					s.source = report.getKey();
+    				}
+    			}
+    			s.progress = now;
+    		}
+    		long have = reorderBuffer.nextExpected();
+    		if (have != s.pulled) {
+    			s.pulled = have;
+    			s.progress = now;
+    			s.lastPull = 0;
+    		}
+    		if (have < s.target && now - s.progress < SYNC_TIMEOUT) {
+    			if (now - s.lastPull < NACK_RETRY) return;
+    			long from = have >= 0 ? have : Math.max(0, s.target - MAX_RESEND);
+    			nack = new Message(Message.Type.NACK, node.getId(), (int) from, String.valueOf(s.target - 1));
+    			source = s.source;
+    			s.lastPull = now;
+    		}
+    		else {
+    			if (have < s.target) {
+    				logger.warning("Node " + node.getId() + " could not pull chats " + have + ".." + (s.target - 1)
+    						+ " from Node " + s.source);
+    			}
+    			long next = Math.max(nextSeq, Math.max(s.target, have));
+    			reorderBuffer.truncate(next);
+    			reorderBuffer.resync(next, this::deliver);
+    			nextSeq = (int) next;
+    			sync = null;
+    			logger.info("Node " + node.getId() + " synced with " + s.reported.size()
+    					+ " followers, continuing at sequence " + next);
+    			for (Map.Entry<Integer, Long> report : s.reported.entrySet()) {
+    				int port = node.getPeerConfig().getPort(report.getKey());
+    				if (report.getValue() >= 0 && report.getValue() < next && port != -1) {
+    					resendAll(port, retransmitLog.range(report.getValue(), next - 1));
+    				}
+    			}
+    			node.getBroadcaster().broadcast(new Message(Message.Type.SYNC, node.getId(), (int) next, ""));
+    			for (Message message : s.waiting) {
+    				broadcastChat(message);
+    			}
+    		}
+    	}
+    	if (nack != null) {
+    		logger.info("Node " + node.getId() + " pulling chats " + nack.getSeq() + ".." + nack.getContent()
+    				+ " from Node " + source);
+    		sendTo(source, nack);
+    	}
+    	else {
+    		endBatch();
+    	}
+    }
+    
+    private void sendTo(int peerId, Message message) {
+    	int port = node.getPeerConfig().getPort(peerId);
+    	if (port != -1) {
+    		node.getMessenger().sendMessage(port, message);
+    	}
+    }
+    
+    /**
+     * Resends unacknowledged chats the leader may have missed, and gives up on chats
+     * that have waited too long. A leader that is slow but still acking is not resent to,
+     * so an overloaded leader is not flooded with replays.
+     */
+    private void checkOutbox() {
+    	long now = System.currentTimeMillis();
+    	synchronized (outbox) {
+    		prune(now);
+    		Pending oldest = outbox.peek();
+    		int leaderId = node.getCurrentLeader();
+    		if (oldest != null && leaderId != -1 && leaderId == outboxLeader && now - oldest.sent > OUTBOX_RETRY && now - ackProgress > OUTBOX_RETRY) {
+    			logger.info("Node " + node.getId() + " resending " + outbox.size() + " unacknowledged chats to leader Node " + leaderId);
+    			replayOutbox(leaderId);
+    		}
+    	}
+    }
+    
+    /**
+     * Drops acknowledged chats and those waited on for too long. Caller holds outbox.
+     * The leader sequences each author's chats in outbox order, so an ack covers every older chat.
+     */
+    private void prune(long now) {
+    	long acked = ackedId.get();
+    	Iterator<Pending> it = outbox.iterator();
+    	while (it.hasNext()) {
+    		Pending pending = it.next();
+    		if (pending.chat.getOutboxId() <= acked) {
+    			it.remove();
+    			ackProgress = now;
+    		}
+    		else if (now - pending.queued > OUTBOX_TIMEOUT) {
+    			logger.warning("Node " + node.getId() + " giving up on unacknowledged chat after " + (now - pending.queued) + "ms");
+    			it.remove();
+    		}
+    		else {
+    			return;
+    		}
+    	}
+    }
+    
+    /**
+     * Sends the whole outbox, oldest first, to a new leader. Caller holds outbox.
+     */
+    private void replayOutbox(int leaderId) {
+    	outboxLeader = leaderId;
+    	if (outbox.isEmpty()) return;
+    	logger.fine("Node " + node.getId() + " replaying " + outbox.size() + " chats to leader Node " + leaderId);
+    	List<Message> chats = new ArrayList<>(outbox.size());
+    	int older = 0;
+    	for (Pending pending : outbox) {
+    		chats.add(stamp(pending, older++));
+    	}
+    	dispatch(chats, leaderId);
+    }
+    
+    /**
+     * Copies an outbox chat for sending to the leader. Caller holds outbox.
+     * @param older chats ahead of it in the outbox, told to the leader as its pending-ahead count
+     */
+    private Message stamp(Pending pending, int older) {
+    	pending.sent = System.currentTimeMillis();
+    	Message chat = pending.chat;
+    	return new Message(Message.Type.CHAT, chat.getSenderId(), -1, chat.getContent(), chat.getOutboxId(), older);
+    }
+    
+    /**
+     * Sends outbox chats to the leader, or sequences them if this node leads, on the chat timer.
+     * Called while holding outbox, so chats are sent in outbox order, but the sending itself
+     * happens after the lock is released: sending takes other locks, e.g. the gossip piggy-back,
+     * whose holders may be waiting on outbox.
+     */
+    private void dispatch(List<Message> chats, int leaderId) {
+    	timer.execute(() -> {
+    		for (Message message : chats) {
+    			if (leaderId == node.getId()) {
+    				// Leader displays its own message immediately
+    				logger.info("Broadcasting message from Node " + node.getId());
+    				broadcastChat(message);
+    			}
+    			else {
+    				logger.info("Forwarding message from Node " + node.getId() + " to leader Node " + leaderId);
+    				forward(message, leaderId);
+    			}
+    		}
+    		if (leaderId == node.getId()) {
+    			endBatch();
+    		}
+    	});
+    }
+    
+    /**
+     * Leaving leader: passes an unsequenced chat on to the successor, or holds it back until
+     * the HANDOFF is queued
+     */
+    private void forwardToSuccessor(Message chat) {
+    	synchronized (sequenceLock) {
+    		if (held != null) {
+    			held.add(chat);
+    			return;
+    		}
+    	}
+    	forward(chat, successor);
+    }
+    
+    /**
+     * Passes an unsequenced chat on to the node that sequences chats now
+     */
+    private void forward(Message chat, int leaderId) {
+    	int port = node.getPeerConfig().getPort(leaderId);
+    	if (port != -1) {
+    		logger.fine("Node " + node.getId() + " forwarding chat from Node " + chat.getSenderId() + " to Node " + leaderId);
+    		node.getMessenger().sendMessage(port, chat);
+    	}
+    }
+    
+    /**
+     * Progress of an elected leader catching up with its followers, guarded by sequenceLock
+     */
+    private static class Sync {
+    	private final long started;
+    	private Collection<Integer> awaited;	// followers sent the COORDINATOR, null until it is sent
+    	private final Map<Integer, Long> reported = new HashMap<>();	// next chat each follower expects
+    	private final List<Message> waiting = new ArrayList<>();	// chats to sequence once synced
+    	private long target = -1;		// sequence to catch up to, -1 until the reports are in
+    	private int source = -1;		// follower the chats up to target are pulled from
+    	private long pulled = -1;		// own next expected sequence when last checked
+    	private long progress;			// when the pull last made progress
+    	private long lastPull;			// when the last NACK was sent
     	
-        for (int peerId : node.getPeerConfig().getPeerIds()) {
-        	if (peerId != node.getId()) {
-        		logger.fine("Broadcasting message from Node " + message.getSenderId() + " to all peers");
-        		int port = node.getPeerConfig().getPort(peerId);
-        		node.getMessenger().sendMessage(port, message);
-        	}
-        	
-        }
+    	Sync(long started) {
+    		this.started = started;
+    	}
+    }
+    
+    private static class Pending {
+    	private final Message chat;
+    	private final long queued;		// when the user sent it
+    	private long sent;				// when it was last sent to a leader
+    	
+    	Pending(Message chat, long queued) {
+    		this.chat = chat;
+    		this.queued = queued;
+    		this.sent = queued;
+    	}
     }
 }
@@ -0,0 +1,326 @@
+package node;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Durable append-only log of delivered chats, stored in fixed-size memory-mapped segments.
+ * Record layout:
+ * <pre>
+ *   int     payload length (0 marks the end of a segment), with HAS_OUTBOX_ID set if the id follows
+ *   long    seq
+ *   int     senderId
+ *   long    author's outbox id, only if HAS_OUTBOX_ID
+ *   bytes   content, UTF-8
+ *   int     CRC32 of the payload
+ * </pre>
+ * Records without an outbox id keep the original layout, so older logs still replay.
+ * Records are numbered by their position in the log, which only grows; a sparse in-memory
+ * index maps every INDEX_INTERVAL-th record number to its position. Sequence numbers are only
+ * looked up within the current run: the records since the sequence last went backwards, e.g.
+ * after the cluster restarted without this log, so chats of an earlier run are never served
+ * as current history. The index is rebuilt on open by checking every record's CRC, stopping
+ * at the first torn record; only the most recent records are decoded.
+ */
+public class ChatStore {
+	private static final Logger logger = Logger.getLogger(ChatStore.class.getName());
+
+	/**
+	 * When appended records are forced to disk.
+	 */
+	public enum FsyncPolicy {
+		PER_MESSAGE,	// after every append
+		PER_BATCH,		// when the caller ends a batch of appends
+		PERIODIC		// when the caller's timer calls sync()
+	}
+
+	public static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+	private static final int INDEX_INTERVAL = 64;		// records between sparse index entries
+	private static final int HEADER = 4 + 8 + 4;		// length, seq, senderId
+	private static final int TRAILER = 4;				// crc
+	private static final int HAS_OUTBOX_ID = 1 << 30;	// flag in the length word; segments are far smaller
+
+	private final Path dir;
+	private final FsyncPolicy fsyncPolicy;
+	private final List<MappedByteBuffer> segments = new ArrayList<>();
+	private final TreeMap<Long, Position> index = new TreeMap<>();		// record number -> position
+	private final TreeMap<Long, Long> runIndex = new TreeMap<>();		// seq -> record number, current run only
+	private MappedByteBuffer active;
+	private long recordCount = 0;
+	private long runStart = 0;			// number of the current run's first record
+	private long lastSeq = -1;			// seq of the newest record
+	private boolean dirty = false;
+
+	private ChatStore(Path dir, FsyncPolicy fsyncPolicy) {
+		this.dir = dir;
+		this.fsyncPolicy = fsyncPolicy;
+	}
+
+	/**
+	 * Opens (or creates) the log in a directory and indexes its existing records
+	 * @param dir directory holding the segment files
+	 * @param fsyncPolicy when appends are forced to disk
+	 */
+	public static ChatStore open(Path dir, FsyncPolicy fsyncPolicy) throws IOException {
+		Files.createDirectories(dir);
+		ChatStore store = new ChatStore(dir, fsyncPolicy);
+		List<Path> files;
+		try (Stream<Path> list = Files.list(dir)) {
+			files = list.filter(p -> p.getFileName().toString().endsWith(".log")).sorted().toList();
+		}
+		for (Path file : files) {
+			store.segments.add(map(file));
+		}
+		if (store.segments.isEmpty()) {
+			store.roll();
+		}
+		store.scan();
+		return store;
+	}
+
+	/**
+	 * @return up to max of the most recent records, oldest first
+	 */
+	public synchronized List<Message> readTail(int max) {
+		return readRecords(Math.max(0, recordCount - max), -1, max);
+	}
+
+	/**
+	 * @return sequence number of the newest record, the end of the current run, or -1 if the log is empty
+	 */
+	public synchronized long lastSeq() {
+		return lastSeq;
+	}
+
+	/**
+	 * Appends a delivered chat. Chats without a sequence number are not stored.
+	 */
+	public synchronized void append(Message chat) {
+		if (chat.getSeq() < 0) return;
+		byte[] text = chat.getContent().getBytes(StandardCharsets.UTF_8);
+		boolean hasId = chat.getOutboxId() != 0;
+		int payload = 8 + 4 + (hasId ? 8 : 0) + text.length;
+		int size = 4 + payload + TRAILER;
+		if (size + 4 > SEGMENT_SIZE) {
+			logger.warning("Chat of " + text.length + " bytes too large for the chat log, not stored");
+			return;
+		}
+		try {
+			if (active.remaining() < size + 4) {	// keep room for the end marker
+				roll();
+			}
+		}
+		catch (IOException e) {
+			logger.warning("Failed to roll chat log segment: " + e.getMessage());
+			return;
+		}
+
+		int start = active.position();
+		active.putInt(hasId ? payload | HAS_OUTBOX_ID : payload);
+		active.putLong(chat.getSeq());
+		active.putInt(chat.getSenderId());
+		if (hasId) {
+			active.putLong(chat.getOutboxId());
+		}
+		active.put(text);
+		CRC32 crc = new CRC32();
+		crc.update(active.duplicate().position(start + 4).limit(start + 4 + payload));
+		active.putInt((int) crc.getValue());
+
+		indexRecord(chat.getSeq(), segments.size() - 1, start);
+		if (runStart == recordCount - 1 && recordCount > 1) {
+			logger.info("Chat log starts a new run at sequence " + chat.getSeq());
+		}
+		dirty = true;
+		if (fsyncPolicy == FsyncPolicy.PER_MESSAGE) {
+			sync();
+		}
+	}
+
+	/**
+	 * Marks the end of a group of appends, forcing them to disk under {@link FsyncPolicy#PER_BATCH}
+	 */
+	public synchronized void endBatch() {
+		if (fsyncPolicy == FsyncPolicy.PER_BATCH) {
+			sync();
+		}
+	}
+
+	/**
+	 * Forces appended records to disk
+	 */
+	public synchronized void sync() {
+		if (dirty) {
+			active.force();
+			dirty = false;
+		}
+	}
+
+	/**
+	 * @return up to max records of the current run starting at the first one with sequence number >= fromSeq
+	 */
+	public synchronized List<Message> readFrom(long fromSeq, int max) {
+		Map.Entry<Long, Long> start = runIndex.floorEntry(fromSeq);
+		return readRecords(start == null ? runStart : start.getValue(), fromSeq, max);
+	}
+
+	public FsyncPolicy getFsyncPolicy() {
+		return fsyncPolicy;
+	}
+
+	/**
+	 * @return up to max records from record number first on whose sequence number is >= fromSeq
+	 */
+	private List<Message> readRecords(long first, long fromSeq, int max) {
+		List<Message> chats = new ArrayList<>();
+		Map.Entry<Long, Position> start = index.floorEntry(first);
+		if (start == null) return chats;
+		long number = start.getKey();
+		int segment = start.getValue().segment;
+		int offset = start.getValue().offset;
+
+		for (; segment < segments.size() && chats.size() < max && number < recordCount; segment++, offset = 0) {
+			ByteBuffer buf = segments.get(segment).duplicate().position(offset);
+			Message m;
+			while (chats.size() < max && number < recordCount && (m = readRecord(buf)) != null) {
+				if (number++ >= first && m.getSeq() >= fromSeq && m.getSeq() >= 0) {
+					chats.add(m);
+				}
+			}
+		}
+		return chats;
+	}
+
+	/**
+	 * Indexes the records of every segment and positions the log after the last valid one
+	 */
+	private void scan() {
+		long start = System.nanoTime();
+		for (int segment = 0; segment < segments.size(); segment++) {
+			ByteBuffer buf = segments.get(segment).duplicate().position(0);
+			int offset = 0;
+			long seq;
+			while ((seq = skipRecord(buf)) != Long.MIN_VALUE) {
+				indexRecord(seq, segment, offset);
+				offset = buf.position();
+			}
+			if (segment == segments.size() - 1) {
+				active = segments.get(segment);
+				active.position(offset);
+				// Clear a torn tail so it cannot be mistaken for a record later
+				if (active.remaining() >= 4) {
+					active.putInt(offset, 0);
+				}
+			}
+		}
+		logger.info("Indexed " + recordCount + " chats from " + segments.size() + " segment(s) in "
+				+ (System.nanoTime() - start) / 1000 + "us");
+	}
+
+	/**
+	 * Indexes the next record. Unsequenced records, kept by older logs, belong to no run.
+	 */
+	private void indexRecord(long seq, int segment, int offset) {
+		long number = recordCount++;
+		if (number % INDEX_INTERVAL == 0) {
+			index.put(number, new Position(segment, offset));
+		}
+		if (seq < 0) return;
+		if (seq <= lastSeq) {
+			runStart = number;
+			runIndex.clear();
+		}
+		if ((number - runStart) % INDEX_INTERVAL == 0) {
+			runIndex.put(seq, number);
+		}
+		lastSeq = seq;
+	}
+
+	private void roll() throws IOException {
+		if (active != null) {
+			active.force();
+		}
+		Path file = dir.resolve(String.format("%010d.log", segments.size()));
+		active = map(file);
+		segments.add(active);
+	}
+
+	private static MappedByteBuffer map(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			// The mapping stays valid after the channel is closed
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+		}
+	}
+
+	/**
+	 * Checks the record at the buffer's position and advances past it, without decoding the content
+	 * @return its sequence number, or Long.MIN_VALUE at the end of the segment or a torn record
+	 */
+	private static long skipRecord(ByteBuffer buf) {
+		int start = buf.position();
+		int payload = validPayload(buf);
+		if (payload < 0) return Long.MIN_VALUE;
+		buf.position(start + 4 + payload + TRAILER);
+		return buf.getLong(start + 4);
+	}
+
+	/**
+	 * @return payload length of the record at the buffer's position, or -1 at the end of the segment or a torn record
+	 */
+	private static int validPayload(ByteBuffer buf) {
+		if (buf.remaining() < HEADER + TRAILER) return -1;
+		int start = buf.position();
+		int word = buf.getInt(start);
+		int payload = word & ~HAS_OUTBOX_ID;
+		int fixed = (word & HAS_OUTBOX_ID) != 0 ? 20 : 12;
+		if (payload < fixed || start + 4 + payload + TRAILER > buf.limit()) return -1;
+
+		CRC32 crc = new CRC32();
+		crc.update(buf.duplicate().position(start + 4).limit(start + 4 + payload));
+		return (int) crc.getValue() == buf.getInt(start + 4 + payload) ? payload : -1;
+	}
+
+	/**
+	 * Reads the record at the buffer's position and advances past it
+	 * @return the record, or null at the end of the segment or a torn record
+	 */
+	private static Message readRecord(ByteBuffer buf) {
+		int start = buf.position();
+		int payload = validPayload(buf);
+		if (payload < 0) return null;
+		boolean hasId = (buf.getInt(start) & HAS_OUTBOX_ID) != 0;
+		int fixed = hasId ? 20 : 12;
+
+		long seq = buf.getLong(start + 4);
+		int senderId = buf.getInt(start + 12);
+		long outboxId = hasId ? buf.getLong(start + 16) : 0;
+		byte[] text = new byte[payload - fixed];
+		buf.get(start + 4 + fixed, text);
+		buf.position(start + 4 + payload + TRAILER);
+		return new Message(Message.Type.CHAT, senderId, (int) seq, new String(text, StandardCharsets.UTF_8), outboxId, 0);
+	}
+
+	private static class Position {
+		private final int segment;
+		private final int offset;
+
+		Position(int segment, int offset) {
+			this.segment = segment;
+			this.offset = offset;
+		}
+	}
+}
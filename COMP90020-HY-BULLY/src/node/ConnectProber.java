@@ -0,0 +1,151 @@
+package node;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Checks whether ports are reachable without blocking the caller. Requests are queued and a
+ * single selector thread starts every queued non-blocking connect in one batch, then waits
+ * for all of them at once; each probe completes when its connect succeeds, fails or times out.
+ * The probing connection is closed straight away.
+ */
+public class ConnectProber {
+	private static final Logger logger = Logger.getLogger(ConnectProber.class.getName());
+	private static final long IDLE_SELECT = 1000;	// ms to wait when no probe is in flight
+
+	private final Selector selector;
+	private final Queue<Probe> requests = new ConcurrentLinkedQueue<>();
+
+	public ConnectProber(String name) {
+		try {
+			this.selector = Selector.open();
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		Thread t = new Thread(this::run, name);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * @return completes with true once something accepts a connection on the port, false if
+	 *         the connection is refused or not established within the timeout
+	 */
+	public CompletableFuture<Boolean> probe(int targetPort, int timeoutMillis) {
+		Probe probe = new Probe(targetPort, System.currentTimeMillis() + timeoutMillis);
+		requests.offer(probe);
+		selector.wakeup();
+		return probe.result;
+	}
+
+	private void run() {
+		while (true) {
+			try {
+				startQueued();
+				selector.select(this::finish, nextTimeout());
+				expire(System.currentTimeMillis());
+			}
+			catch (IOException | RuntimeException e) {
+				logger.log(Level.WARNING, "Reachability prober failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Starts a non-blocking connect for every queued request
+	 */
+	private void startQueued() {
+		Probe probe;
+		while ((probe = requests.poll()) != null) {
+			SocketChannel channel = null;
+			try {
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				if (channel.connect(new InetSocketAddress("localhost", probe.port))) {
+					channel.close();
+					probe.result.complete(true);
+				}
+				else {
+					channel.register(selector, SelectionKey.OP_CONNECT, probe);
+				}
+			}
+			catch (IOException e) {
+				close(channel);
+				probe.result.complete(false);
+			}
+		}
+	}
+
+	private void finish(SelectionKey key) {
+		Probe probe = (Probe) key.attachment();
+		SocketChannel channel = (SocketChannel) key.channel();
+		boolean connected;
+		try {
+			connected = channel.finishConnect();
+		}
+		catch (IOException e) {
+			logger.fine("Failed to connect to localhost:" + probe.port);
+			connected = false;
+		}
+		key.cancel();
+		close(channel);
+		probe.result.complete(connected);
+	}
+
+	/**
+	 * Fails the probes whose deadline has passed
+	 */
+	private void expire(long now) {
+		for (SelectionKey key : selector.keys()) {
+			Probe probe = (Probe) key.attachment();
+			if (key.isValid() && now >= probe.deadline) {
+				key.cancel();
+				close((SocketChannel) key.channel());
+				probe.result.complete(false);
+			}
+		}
+	}
+
+	/**
+	 * @return ms until the earliest deadline of a probe in flight
+	 */
+	private long nextTimeout() {
+		long now = System.currentTimeMillis();
+		long wait = IDLE_SELECT;
+		for (SelectionKey key : selector.keys()) {
+			if (key.isValid()) {
+				wait = Math.min(wait, ((Probe) key.attachment()).deadline - now);
+			}
+		}
+		return Math.max(1, wait);
+	}
+
+	private static void close(SocketChannel channel) {
+		if (channel == null) return;
+		try {
+			channel.close();
+		}
+		catch (IOException ignored) {}
+	}
+
+	private static class Probe {
+		private final int port;
+		private final long deadline;
+		private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+		Probe(int port, long deadline) {
+			this.port = port;
+			this.deadline = deadline;
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package node;
+
+import java.io.*;
+import java.net.*;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * Pool of long-lived outbound TCP connections, one per peer port.
+ * Each connection starts with the codec's preamble and then carries any number of
+ * framed messages; broken connections are re-established once per send and idle ones are evicted.
+ * A receiver that understands the codec echoes its preamble back. A peer that does not answer within
+ * {@link #HANDSHAKE_TIMEOUT}, e.g. an older node that only reads JSON, is sent JSON from then on.
+ * A write that makes no progress for {@link #WRITE_TIMEOUT} (a peer that stopped reading) has its
+ * socket closed, so it fails instead of holding the peer's writer forever.
+ */
+public class ConnectionPool {
+	private static final Logger logger = Logger.getLogger(ConnectionPool.class.getName());
+
+	public static final int IDLE_TIMEOUT = 30000;     // ms
+	private static final int CONNECT_TIMEOUT = 1000;  // ms
+	public static final int WRITE_TIMEOUT = 2000;     // ms
+	private static final int HANDSHAKE_TIMEOUT = 500; // ms
+
+	private final MessageCodec codec;
+	private final ConcurrentHashMap<Integer, PeerConnection> connections = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "connection-evictor");
+		t.setDaemon(true);
+		return t;
+	});
+
+	public ConnectionPool(MessageCodec codec) {
+		this.codec = codec;
+		evictor.scheduleAtFixedRate(this::evictIdle, IDLE_TIMEOUT / 2, IDLE_TIMEOUT / 2, TimeUnit.MILLISECONDS);
+		evictor.scheduleAtFixedRate(this::abortStalled, WRITE_TIMEOUT / 2, WRITE_TIMEOUT / 2, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Writes one encoded frame to the peer listening on targetPort, reusing the pooled connection.
+	 * If the pooled connection turns out to be broken it is replaced and the write retried once.
+	 * @param targetPort message destination
+	 * @param frame message encoded by this pool's codec
+	 * @throws IOException if the peer cannot be reached even on a fresh connection
+	 */
+	public void send(int targetPort, byte[] frame) throws IOException {
+		PeerConnection conn = connections.computeIfAbsent(targetPort, port -> new PeerConnection(port, codec));
+		synchronized (conn) {
+			try {
+				conn.write(frame);
+			}
+			catch (IOException first) {
+				logger.fine("Connection to port " + targetPort + " broken, reconnecting");
+				conn.close();
+				conn.write(frame);
+			}
+		}
+	}
+
+	/**
+	 * Closes and forgets the connection to a peer, e.g. when it left the cluster.
+	 */
+	public void close(int targetPort) {
+		PeerConnection conn = connections.remove(targetPort);
+		if (conn != null) {
+			synchronized (conn) {
+				conn.close();
+			}
+		}
+	}
+
+	/**
+	 * Closes every connection and stops the evictor; the pool cannot be used afterwards.
+	 */
+	public void closeAll() {
+		evictor.shutdownNow();
+		for (Integer port : connections.keySet()) {
+			close(port);
+		}
+	}
+
+	private void evictIdle() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<Integer, PeerConnection> e : connections.entrySet()) {
+			PeerConnection conn = e.getValue();
+			synchronized (conn) {
+				if (conn.isOpen() && now - conn.lastUsed > IDLE_TIMEOUT) {
+					logger.fine("Evicting idle connection to port " + e.getKey());
+					conn.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes connections stuck in a write; runs without their monitors, which the writer holds
+	 */
+	private void abortStalled() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<Integer, PeerConnection> e : connections.entrySet()) {
+			if (e.getValue().abortIfStalled(now)) {
+				logger.warning("Write to port " + e.getKey() + " stalled for over " + WRITE_TIMEOUT + "ms, closing connection");
+			}
+		}
+	}
+
+	/**
+	 * A single (re)connectable stream to one peer. Guarded by its own monitor,
+	 * except for {@link #abortIfStalled(long)}.
+	 */
+	private static class PeerConnection {
+		private final int port;
+		private final MessageCodec codec;
+		private boolean legacy = false;		// peer ignored the preamble; frames are re-encoded as JSON
+		private volatile Socket socket;
+		private OutputStream out;
+		private volatile long lastUsed = System.currentTimeMillis();
+		private volatile long writeStarted = 0;		// ms, 0 while no write is in progress
+
+		PeerConnection(int port, MessageCodec codec) {
+			this.port = port;
+			this.codec = codec;
+		}
+
+		boolean isOpen() {
+			return socket != null;
+		}
+
+		void write(byte[] frame) throws IOException {
+			if (socket == null) {
+				open();
+			}
+			if (legacy) {
+				frame = MessageCodec.JSON.encode(codec.decode(codec.unframe(frame)));
+			}
+			writeStarted = System.currentTimeMillis();
+			try {
+				out.write(frame);
+				out.flush();
+			}
+			finally {
+				writeStarted = 0;
+			}
+			lastUsed = System.currentTimeMillis();
+		}
+
+		/**
+		 * Connects and, unless the peer is already known to need JSON, negotiates the codec
+		 */
+		private void open() throws IOException {
+			try {
+				connect();
+				if (codec.preamble() >= 0 && !legacy && !handshake()) {
+					logger.info("Peer on port " + port + " did not confirm the wire format, falling back to JSON");
+					legacy = true;
+					close();
+					connect();
+				}
+			}
+			catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		private void connect() throws IOException {
+			Socket s = new Socket();
+			try {
+				s.setTcpNoDelay(true);
+				s.connect(new InetSocketAddress("localhost", port), CONNECT_TIMEOUT);
+			}
+			catch (IOException e) {
+				s.close();
+				throw e;
+			}
+			socket = s;
+			out = new BufferedOutputStream(s.getOutputStream());
+		}
+
+		/**
+		 * Announces the codec and waits for the peer to echo its preamble
+		 * @return false if the peer closed the connection or stayed silent
+		 */
+		private boolean handshake() throws IOException {
+			int preamble = codec.preamble();
+			out.write(preamble);
+			out.flush();
+			socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+			try {
+				return socket.getInputStream().read() == preamble;
+			}
+			catch (SocketTimeoutException e) {
+				return false;
+			}
+			finally {
+				socket.setSoTimeout(0);
+			}
+		}
+
+		/**
+		 * Closes the socket if a write has been in progress for too long; the write then fails.
+		 * Safe to call from any thread.
+		 * @return true if the socket was closed
+		 */
+		boolean abortIfStalled(long now) {
+			long started = writeStarted;
+			Socket s = socket;
+			if (started == 0 || s == null || now - started <= WRITE_TIMEOUT) return false;
+			try {
+				s.close();
+			}
+			catch (IOException ignored) {}
+			return true;
+		}
+
+		void close() {
+			if (socket == null) return;
+			try {
+				socket.close();
+			}
+			catch (IOException ignored) {}
+			socket = null;
+			out = null;
+		}
+	}
+}
@@ -39,7 +39,7 @@ public class DiscoveryManager {
                         int  otherId   = Integer.parseInt(parts[1]);
                         int  otherPort = Integer.parseInt(parts[2]);
                         if (otherId != node.getId()
-                                && !node.getPeerConfig().getPeerMap().containsKey(otherId)) {
+                                && !node.getPeerConfig().contains(otherId)) {
                             logger.info("Discovered Node " + otherId + " @ port " + otherPort);
                             node.getPeerConfig().addPeer(otherId, otherPort);
                         }
@@ -1,26 +1,97 @@
 package node;
-import java.util.logging.Level;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
- * Implements the Bully leader election protocol.
+ * Implements the Bully leader election protocol, in one of two {@link Algorithm}s.
+ * ELECTION messages go to all higher-ID peers at once, and the election's timeouts run on
+ * one timer shared by every node in the process instead of a thread per election.
+ * Each election is numbered; a timer belonging to an earlier election is cancelled
+ * when it is superseded and ignored if it fires anyway.
+ * <p>
+ * Every election also has a term, one higher than any term the node has seen, which rides
+ * on its ELECTION, OK and COORDINATOR messages and on the leader's heartbeats. A leader is
+ * only adopted from a term at least as new as the current leader's, so a COORDINATOR or
+ * OK delayed from an election that has since been superseded is dropped on arrival instead
+ * of unseating the newer leader, and an ELECTION older than the current leader is answered
+ * without starting yet another round.
  */
 public class ElectionManager {
+	/**
+	 * How peers that answer an ELECTION take part in the rest of the election
+	 */
+	public enum Algorithm {
+		/** Every peer that answers OK starts its own election; O(N²) messages if the lowest ID starts */
+		CLASSIC,
+		/**
+		 * Peers only answer OK. The initiator collects the OKs and sends a single GRANT to the
+		 * highest responder, which announces itself without an election of its own; O(N) messages
+		 */
+		MODIFIED
+	}
+
 	private static final Logger logger = Logger.getLogger(ElectionManager.class.getName());
-	private static final int TIMEOUT = 3000;
+	private static final int TIMEOUT = 3000;		// ms to wait for an OK from a higher-ID peer
 	private static final int SHORT_TIMEOUT = 1000;
-	
+	// ms to wait for the COORDINATOR once a higher-ID peer answered OK; that peer may first
+	// have to wait out its own election
+	private static final int COORDINATOR_TIMEOUT = TIMEOUT + SHORT_TIMEOUT;
+	// Modified algorithm: ms to wait for further OKs after the first, unless every reachable
+	// higher-ID peer has answered before
+	private static final int OK_WINDOW = SHORT_TIMEOUT / 4;
+	// Modified algorithm: ms after answering an ELECTION until a peer that heard of no new
+	// leader starts its own election, in case the initiator failed before granting
+	private static final int GRANT_TIMEOUT = TIMEOUT + COORDINATOR_TIMEOUT;
+	// COORDINATOR content of a successor that continues the chat sequence of a leaving leader
+	static final String HANDOFF = "handoff";
+
+	private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "election-timer");
+		t.setDaemon(true);
+		return t;
+	});
+
 	private final Node node;
-	
-	// Election state flags
+	private final Algorithm algorithm;
+	private final ElectionMetrics metrics = new ElectionMetrics();
+
+	// Election state flags, guarded by this
 	private volatile boolean inElection = false;
 	private volatile boolean receivedOk = false;
 	private volatile boolean receivedCoordinator = false;
-	
+	private int round = 0;						// number of the current or last election
+	private ScheduledFuture<?> pendingTimeout;	// timer of the current election phase, if any
+	private long electionStart = 0;				// System.nanoTime() of the unfinished election, 0 if none
+	private long term = 0;						// highest election term seen
+	private long electionTerm = 0;				// term of the current or last own election
+	private volatile long leaderTerm = 0;		// term in which the current leader was elected
+	private int leaderChanges = 0;				// leaders adopted or declared so far
+	// Modified algorithm, current own election
+	private int highestCandidate = -1;			// highest ID the ELECTION was sent to
+	private int bestOk = -1;					// highest ID that answered OK, -1 if none yet
+	private int oksReceived = 0;
+	private int expectedOks = -1;				// ELECTIONs delivered, -1 until all sends completed
+	private boolean granted = false;
+	private ScheduledFuture<?> grantWatch;		// modified algorithm: timer after answering an ELECTION
+
 	public ElectionManager(Node node) {
-		this.node = node;
+		this(node, Algorithm.CLASSIC);
 	};
-	
+
+	public ElectionManager(Node node, Algorithm algorithm) {
+		this.node = node;
+		this.algorithm = algorithm;
+	}
+
+	public Algorithm getAlgorithm() {
+		return algorithm;
+	}
+
 	/**
      * Starts a new election if one is not already in progress.
      */
@@ -29,118 +100,423 @@ public class ElectionManager {
         	logger.fine("Node " + node.getId() + " already in election, skipping initiation");
             return;
         }
-        
+
         logger.info("Node " + node.getId() + " initiating election");
         inElection = true;
         receivedOk = false;
         receivedCoordinator = false;
+        bestOk = -1;
+        oksReceived = 0;
+        expectedOks = -1;
+        granted = false;
+        int electionRound = ++round;
+        electionTerm = ++term;
+        if (electionStart == 0) {
+        	electionStart = metrics.roundStarted();
+        }
+        else {
+        	metrics.roundStarted();		// a restart still counts towards the first round's duration
+        }
 
-        boolean higherExists = false;
-        
-        for (int peerId : node.getPeerConfig().getPeerIds()) {
-            if (peerId > node.getId()) {
-                int peerPort = node.getPeerConfig().getPort(peerId);
-                // Send ELECTION message
-                Message msg = new Message(Message.Type.ELECTION, node.getId(), -1, "");
-                logger.fine("Node " + node.getId() + " sending ELECTION message to Node " + peerId);
-                node.getMessenger().sendMessage(peerPort, msg);
-                higherExists = true;
+        List<Integer> higher = new ArrayList<>();
+        PeerConfig.Snapshot peers = node.getPeerConfig().snapshot();
+        for (int i = 0; i < peers.size(); i++) {
+            if (peers.idAt(i) > node.getId()) {
+            	higher.add(peers.idAt(i));
             }
         }
 
-        if (!higherExists) {
+        if (higher.isEmpty()) {
         	// No higher-ID alive -> self-promote
         	logger.info("Node " + node.getId() + " has no peers with higher IDs, declaring self as leader");
-            declareLeader();
-        } 
-        else {
-        	// Two-phase wait
-            new Thread(() -> {
-                try {
-                	logger.fine("Node " + node.getId() + " waiting " + TIMEOUT + "ms for responses");
-                    Thread.sleep(TIMEOUT);
-                    if (receivedOk && !receivedCoordinator) {
-                    	// got OK but no COORDINATOR -> wait SHORT_TIMEOUT
-                    	logger.info("Node " + node.getId() + " received OK but no COORDINATOR, waiting extra " 
-                                + SHORT_TIMEOUT + "ms for COORDINATOR");
-                        Thread.sleep(SHORT_TIMEOUT);
-                        
-                        if (!receivedCoordinator) {
-                        	logger.info("Node " + node.getId() + " got no COORDINATOR after extra wait, restarting election");
-                            inElection = false;           // allow re-entry
-                            initiateElection();
-                        }
-                    }
-                    else if (!receivedOk && !receivedCoordinator) {
-                    	// no response -> self-promote
-                    	logger.info("Node " + node.getId() + " received no responses, declaring self as leader");
-                        declareLeader();
-                    }
-                    // Otherwise: receivedCoordinator==true → election over
-                    else if (receivedCoordinator) {
-                        logger.fine("Node " + node.getId() + " received COORDINATOR, election complete");
-                    }
-                } 
-                catch (Exception e) {
-                    logger.warning(e.toString());
-                }
-            }).start();
+            declareLeader(-1);
+            return;
         }
+
+        highestCandidate = higher.get(higher.size() - 1);		// snapshot ids ascend
+        logger.fine("Node " + node.getId() + " sending ELECTION message to Nodes " + higher);
+        metrics.messagesSent(Message.Type.ELECTION, higher.size());
+        Broadcaster.Result sent = node.getBroadcaster().multicast(
+        		new Message(Message.Type.ELECTION, node.getId(), -1, "", electionTerm), higher);
+
+        logger.fine("Node " + node.getId() + " waiting " + TIMEOUT + "ms for responses");
+        schedule(() -> okTimedOut(electionRound), TIMEOUT);
+        // If no higher-ID peer could even be reached there is nobody to wait for
+        sent.completion().thenRun(() -> electionSent(electionRound, sent));
 	}
-	
+
 	/**
      * Handle an incoming ELECTION message: reply OK and possibly start own election.
+     * @param electionTerm term of the sender's election
      */
-	public void handleElectionMessage(int fromId) {
+	public void handleElectionMessage(int fromId, long electionTerm) {
 		logger.info("Node " + node.getId() + " received ELECTION from Node " + fromId);
-		
+		metrics.messageReceived(Message.Type.ELECTION);
+		long okTerm;
+		boolean superseded;
+		synchronized (this) {
+			term = Math.max(term, electionTerm);
+			okTerm = term;
+			// Started before the current leader was elected; that leader's COORDINATOR reaches the sender too
+			superseded = electionTerm <= leaderTerm && node.getCurrentLeader() != -1;
+		}
+
         if (fromId < node.getId()) {
             int peerPort = node.getPeerConfig().getPort(fromId);
-            Message okMsg = new Message(Message.Type.OK, node.getId(), -1, "");
-            node.getMessenger().sendMessage(peerPort, okMsg);
+            if (peerPort != -1) {
+            	// At least the election's own term, so the sender can tell it from an OK of an older election
+            	Message okMsg = new Message(Message.Type.OK, node.getId(), -1, "", okTerm);
+            	node.getMessenger().sendMessage(peerPort, okMsg);
+            	metrics.messagesSent(Message.Type.OK, 1);
+            }
 
-            if (!inElection) {
+            if (superseded) {
+            	logger.fine("Node " + node.getId() + " not starting an election for ELECTION of superseded term " + electionTerm);
+            	metrics.staleMessage();
+            }
+            else if (algorithm == Algorithm.MODIFIED) {
+            	// The initiator decides; only step in if it never does
+            	watchForLeader();
+            }
+            else if (!inElection) {
             	logger.fine("Node " + node.getId() + " starting own election after ELECTION message from lower ID");
                 initiateElection();
             }
         }
     }
-	
+
 	/**
-	 * Handles an OK message for Bully Election
+	 * Handles an OK message for Bully Election. A higher-ID peer has taken over, so
+	 * the node stops waiting for other answers and waits for the COORDINATOR instead.
+	 * In the modified algorithm the node keeps collecting OKs until it can grant leadership.
+	 * @param fromId peer that answered
+	 * @param okTerm term the peer answered with, older than the current election if the OK is stale
 	 */
-	public void handleOkMessage() {
+	public synchronized void handleOkMessage(int fromId, long okTerm) {
 		logger.fine("Node " + node.getId() + " received OK message");
+		metrics.messageReceived(Message.Type.OK);
+		if (okTerm < electionTerm) {
+			logger.fine("Node " + node.getId() + " dropping OK of term " + okTerm + ", election is at term " + electionTerm);
+			metrics.staleMessage();
+			return;
+		}
+		term = Math.max(term, okTerm);
+		if (algorithm == Algorithm.MODIFIED) {
+			collectOk(fromId);
+			return;
+		}
+		if (!inElection || receivedOk || receivedCoordinator) {
+			receivedOk = true;
+			return;
+		}
         receivedOk = true;
+        int electionRound = round;
+        logger.fine("Node " + node.getId() + " waiting " + COORDINATOR_TIMEOUT + "ms for COORDINATOR");
+        schedule(() -> coordinatorTimedOut(electionRound), COORDINATOR_TIMEOUT);
     }
 
 	/**
 	 * Handles a coordinator message for Bully Election
 	 * @param fromId new coordinator
+	 * @param chatSeq next chat sequence number of the new coordinator, or -1 if not known
+	 * @param coordinatorTerm term in which the coordinator was elected
+	 * @param continued true if the coordinator took the chat sequence over from a leaving leader
 	 */
-    public void handleCoordinatorMessage(int fromId) {
+    public void handleCoordinatorMessage(int fromId, int chatSeq, long coordinatorTerm, boolean continued) {
     	logger.fine("Node " + node.getId() + " received COORDINATOR message from Node " + fromId);
-        receivedCoordinator = true;
-        inElection = false;
-        node.setLeader(fromId);
+    	metrics.messageReceived(Message.Type.COORDINATOR);
+    	synchronized (this) {
+    		if (isStale(fromId, coordinatorTerm)) {
+    			logger.info("Node " + node.getId() + " dropping stale COORDINATOR from Node " + fromId
+    					+ " (term " + coordinatorTerm + ", current leader elected in term " + leaderTerm + ")");
+    			metrics.staleMessage();
+    			challenge(fromId);
+    			return;
+    		}
+    		adoptTerm(coordinatorTerm);
+    		leaderChanges++;
+    		receivedCoordinator = true;
+    		inElection = false;
+    		cancelPending();
+    		finishElection();
+    	}
+        node.setLeader(fromId, continued);
+        node.getChatManager().leaderProgress(chatSeq);
+        challengeLower(fromId);
+    }
+
+    /**
+     * Handles a HANDOFF: the leader is leaving and picked this node as its successor. The node
+     * takes over the chat sequence and announces itself in a new term, without an election.
+     * @param handoff HANDOFF from the leaving leader
+     */
+    public void handleHandoffMessage(Message handoff) {
+    	logger.info("Node " + node.getId() + " taking over leadership from leaving Node " + handoff.getSenderId());
+    	synchronized (this) {
+    		if (handoff.getEpoch() < leaderTerm) {
+    			logger.fine("Node " + node.getId() + " dropping HANDOFF of term " + handoff.getEpoch() + ", leader elected in term " + leaderTerm);
+    			metrics.staleMessage();
+    			return;
+    		}
+    		// A new term: followers must prefer this node over the leaving one, whose ID is higher
+    		term = Math.max(term, handoff.getEpoch()) + 1;
+    	}
+    	node.getChatManager().takeOver(handoff);
+    	declareLeader(handoff.getSenderId());
+    }
+
+    /**
+     * Handles a GRANT (modified algorithm): the initiator of an election found this node to be
+     * the highest that answered, so it becomes leader without an election of its own.
+     * @param fromId initiator of the election
+     * @param grantTerm term of that election
+     */
+    public synchronized void handleGrantMessage(int fromId, long grantTerm) {
+    	logger.info("Node " + node.getId() + " was granted leadership by Node " + fromId);
+    	metrics.messageReceived(Message.Type.GRANT);
+    	if (node.isLeader()) {
+    		// Already announced, e.g. granted by several initiators; the sender may have missed it
+    		int port = node.getPeerConfig().getPort(fromId);
+    		if (port != -1) {
+    			node.getMessenger().sendMessage(port, new Message(Message.Type.COORDINATOR, node.getId(),
+    					node.getChatManager().nextSequence(), "", leaderTerm));
+    			metrics.messagesSent(Message.Type.COORDINATOR, 1);
+    		}
+    		return;
+    	}
+    	if (grantTerm < leaderTerm) {
+    		logger.fine("Node " + node.getId() + " dropping GRANT of term " + grantTerm + ", leader elected in term " + leaderTerm);
+    		metrics.staleMessage();
+    		return;
+    	}
+    	term = Math.max(term, grantTerm);
+    	declareLeader(-1);
+    }
+
+    /**
+     * Checks a leader announced outside an election, e.g. by a heartbeat or a membership
+     * snapshot, against the current leader's term. If it is not stale, adopts the term and
+     * switches to the leader before challenging it, so a challenge this node wins at once
+     * is not overwritten by the switch.
+     * @return false if the announcement is older than the current leader's and must be ignored
+     */
+    public boolean observeLeader(int leaderId, long leaderTerm) {
+    	if (leaderId == node.getCurrentLeader() && leaderTerm == this.leaderTerm) {
+    		return true;		// the common case, a heartbeat from the known leader
+    	}
+    	synchronized (this) {
+    		if (isStale(leaderId, leaderTerm)) {
+    			metrics.staleMessage();
+    			challenge(leaderId);
+    			return false;
+    		}
+    		adoptTerm(leaderTerm);
+    		if (leaderId != node.getCurrentLeader()) {
+    			node.setLeader(leaderId);
+    		}
+    	}
+    	challengeLower(leaderId);
+    	return true;
+    }
+
+    /**
+     * @return term in which the current leader was elected, 0 if none was
+     */
+    public long getLeaderTerm() {
+    	return leaderTerm;
+    }
+
+    /**
+     * @return true if a leader of the given term must not replace the current one: its term is
+     *         older, or it is the same and the current leader has the higher ID
+     */
+    private boolean isStale(int leaderId, long leaderTerm) {
+    	return leaderTerm < this.leaderTerm
+    			|| (leaderTerm == this.leaderTerm && leaderId < node.getCurrentLeader());
+    }
+
+    /**
+     * A higher-ID node than the current leader claims leadership in an old term, e.g. after a
+     * restart or after it missed a newer election. Tells it the current term, so its next
+     * election can win for real.
+     */
+    private void challenge(int staleLeader) {
+    	if (staleLeader <= node.getId() || staleLeader <= node.getCurrentLeader()) return;
+    	int port = node.getPeerConfig().getPort(staleLeader);
+    	if (port != -1) {
+    		node.getMessenger().sendMessage(port, new Message(Message.Type.ELECTION, node.getId(), -1, "", term));
+    		metrics.messagesSent(Message.Type.ELECTION, 1);
+    	}
+    }
+
+    /**
+     * A lower-ID node leads, e.g. one that elected itself while cut off from the cluster.
+     * A live higher node never serves it, but starts an election that it will win.
+     */
+    private void challengeLower(int leaderId) {
+    	if (leaderId >= node.getId() || node.getMembershipGossip().isLeaving()) return;
+    	logger.info("Node " + node.getId() + " challenging lower leader Node " + leaderId);
+    	timer.execute(this::initiateElection);
+    }
+
+    private void adoptTerm(long leaderTerm) {
+    	this.leaderTerm = leaderTerm;
+    	term = Math.max(term, leaderTerm);
+    }
+
+    /**
+     * Phase one expired: no higher-ID peer answered, so this node wins.
+     */
+    private synchronized void okTimedOut(int electionRound) {
+    	if (electionRound != round || !inElection || receivedOk || receivedCoordinator) return;
+    	logger.info("Node " + node.getId() + " received no responses, declaring self as leader");
+    	declareLeader(-1);
     }
-	
+
+    /**
+     * Every ELECTION message has been written or has failed. If none could be delivered,
+     * no higher-ID peer is alive and the node wins without waiting out the timeout.
+     */
+    private synchronized void electionSent(int electionRound, Broadcaster.Result sent) {
+    	if (electionRound != round || !inElection || granted || receivedCoordinator) return;
+    	if (algorithm == Algorithm.MODIFIED) {
+    		expectedOks = sent.delivered().size();
+    		if (receivedOk && oksReceived >= expectedOks) {
+    			grant();
+    			return;
+    		}
+    	}
+    	if (receivedOk) return;
+    	if (sent.delivered().isEmpty()) {
+    		logger.info("Node " + node.getId() + " could not reach any higher-ID peer, declaring self as leader");
+    		declareLeader(-1);
+    	}
+    }
+
+    /**
+     * Counts an OK and grants leadership once no higher answer can come (modified algorithm):
+     * the highest peer asked has answered, or every peer the ELECTION reached has. Otherwise
+     * the first OK opens a short window for the others.
+     */
+    private void collectOk(int fromId) {
+    	if (!inElection || granted || receivedCoordinator) return;
+    	oksReceived++;
+    	bestOk = Math.max(bestOk, fromId);
+    	if (!receivedOk) {
+    		receivedOk = true;
+    		int electionRound = round;
+    		schedule(() -> okWindowClosed(electionRound), OK_WINDOW);
+    	}
+    	if (bestOk == highestCandidate || (expectedOks >= 0 && oksReceived >= expectedOks)) {
+    		grant();
+    	}
+    }
+
+    private synchronized void okWindowClosed(int electionRound) {
+    	if (electionRound != round || !inElection || granted || receivedCoordinator) return;
+    	grant();
+    }
+
+    /**
+     * Sends the GRANT to the highest peer that answered and waits for its COORDINATOR
+     */
+    private void grant() {
+    	granted = true;
+    	int electionRound = round;
+    	int port = node.getPeerConfig().getPort(bestOk);
+    	logger.fine("Node " + node.getId() + " granting leadership to Node " + bestOk + " after " + oksReceived + " OKs");
+    	if (port != -1) {
+    		node.getMessenger().sendMessage(port, new Message(Message.Type.GRANT, node.getId(), -1, "", electionTerm));
+    		metrics.messagesSent(Message.Type.GRANT, 1);
+    	}
+    	schedule(() -> coordinatorTimedOut(electionRound), COORDINATOR_TIMEOUT);
+    }
+
+    /**
+     * Starts an election of its own unless a leader is announced in time (modified algorithm).
+     * Covers an initiator that failed after this node answered its ELECTION.
+     */
+    private synchronized void watchForLeader() {
+    	if (inElection) return;
+    	int changes = leaderChanges;
+    	if (grantWatch != null) {
+    		grantWatch.cancel(false);
+    	}
+    	grantWatch = timer.schedule(() -> grantOverdue(changes), GRANT_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void grantOverdue(int changes) {
+    	if (changes != leaderChanges || inElection) return;
+    	logger.info("Node " + node.getId() + " heard of no leader after answering ELECTION, starting own election");
+    	initiateElection();
+    }
+
+    /**
+     * Phase two expired: a higher-ID peer answered OK but never announced itself.
+     */
+    private synchronized void coordinatorTimedOut(int electionRound) {
+    	if (electionRound != round || !inElection || receivedCoordinator) return;
+    	logger.info("Node " + node.getId() + " got no COORDINATOR after OK, restarting election");
+    	metrics.reElection();
+    	inElection = false;           // allow re-entry
+    	initiateElection();
+    }
+
     /**
      * Declare self as leader and broadcast COORDINATOR to lower-ID processes.
+     * @param predecessor leaving leader whose chat sequence this node continues, which is
+     *                    told as well; -1 if this node was elected
      */
-	private void declareLeader() {
+	private synchronized void declareLeader(int predecessor) {
 		logger.info("Node " + node.getId() + " is declaring itself as the new leader");
-        node.setLeader(node.getId());
+		cancelPending();
+		leaderTerm = term;
+		leaderChanges++;
+        node.setLeader(node.getId(), predecessor != -1);
         inElection = false;
         // Send COORDINATOR to lower-ID peers
-        for (int peerId : node.getPeerConfig().getPeerIds()) {
-        	if (peerId < node.getId()) {
-        		int peerPort = node.getPeerConfig().getPort(peerId);
-        		Message coordMsg = new Message(Message.Type.COORDINATOR, node.getId(), -1, "");
-                node.getMessenger().sendMessage(peerPort, coordMsg);
-                logger.fine("Node " + node.getId() + " sending COORDINATOR message to Node " + peerId);
+        List<Integer> lower = new ArrayList<>();
+        PeerConfig.Snapshot peers = node.getPeerConfig().snapshot();
+        for (int i = 0; i < peers.size(); i++) {
+        	if (peers.idAt(i) < node.getId() || peers.idAt(i) == predecessor) {
+        		lower.add(peers.idAt(i));
         	}
         }
+        logger.fine("Node " + node.getId() + " sending COORDINATOR message to Nodes " + lower);
+        metrics.messagesSent(Message.Type.COORDINATOR, lower.size());
+        finishElection();
+        node.getBroadcaster().multicast(new Message(Message.Type.COORDINATOR, node.getId(),
+        		node.getChatManager().nextSequence(), predecessor != -1 ? HANDOFF : "", leaderTerm), lower);
+        node.getChatManager().leadershipAnnounced(predecessor != -1 ? List.of() : lower);
     }
-	
+
+	/**
+	 * @return counters and timings of this node's elections
+	 */
+	public ElectionMetrics getMetrics() {
+		return metrics;
+	}
+
+	private void finishElection() {
+		if (electionStart != 0) {
+			metrics.electionFinished(System.nanoTime() - electionStart);
+			electionStart = 0;
+		}
+	}
+
+	/**
+	 * Replaces the timer of the current election phase
+	 */
+	private void schedule(Runnable task, long delayMillis) {
+		cancelPending();
+		pendingTimeout = timer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private void cancelPending() {
+		if (pendingTimeout != null) {
+			pendingTimeout.cancel(false);
+			pendingTimeout = null;
+		}
+	}
+
 }
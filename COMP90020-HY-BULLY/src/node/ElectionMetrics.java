@@ -0,0 +1,176 @@
+package node;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and timings of one node's elections and leader failure detection.
+ * Safe to update from any thread.
+ */
+public class ElectionMetrics {
+	private final LongAdder electionsSent = new LongAdder();
+	private final LongAdder oksSent = new LongAdder();
+	private final LongAdder grantsSent = new LongAdder();
+	private final LongAdder coordinatorsSent = new LongAdder();
+	private final LongAdder electionsReceived = new LongAdder();
+	private final LongAdder oksReceived = new LongAdder();
+	private final LongAdder grantsReceived = new LongAdder();
+	private final LongAdder coordinatorsReceived = new LongAdder();
+	private final LongAdder rounds = new LongAdder();
+	private final LongAdder reElections = new LongAdder();
+	private final LongAdder staleDropped = new LongAdder();
+	private final LatencyHistogram electionDuration = new LatencyHistogram();
+	private final LatencyHistogram failureDetection = new LatencyHistogram();
+	private volatile long lastRoundStart = 0;		// System.nanoTime() when the last round started, 0 if none
+
+	/**
+	 * Counts election protocol messages queued for sending
+	 * @param type ELECTION, OK, GRANT or COORDINATOR
+	 * @param count number of peers the message went to
+	 */
+	public void messagesSent(Message.Type type, int count) {
+		switch (type) {
+			case ELECTION: electionsSent.add(count); break;
+			case OK: oksSent.add(count); break;
+			case GRANT: grantsSent.add(count); break;
+			case COORDINATOR: coordinatorsSent.add(count); break;
+			default: break;
+		}
+	}
+
+	/**
+	 * Counts a received election protocol message
+	 */
+	public void messageReceived(Message.Type type) {
+		switch (type) {
+			case ELECTION: electionsReceived.increment(); break;
+			case OK: oksReceived.increment(); break;
+			case GRANT: grantsReceived.increment(); break;
+			case COORDINATOR: coordinatorsReceived.increment(); break;
+			default: break;
+		}
+	}
+
+	/**
+	 * @return System.nanoTime() at which the round started
+	 */
+	public long roundStarted() {
+		rounds.increment();
+		long now = System.nanoTime();
+		lastRoundStart = now;
+		return now;
+	}
+
+	/**
+	 * Counts an election restarted because the peer that answered OK never became leader
+	 */
+	public void reElection() {
+		reElections.increment();
+	}
+
+	/**
+	 * Counts a control message dropped because its term or incarnation was out of date
+	 */
+	public void staleMessage() {
+		staleDropped.increment();
+	}
+
+	/**
+	 * @param nanos time from starting the election until a leader was known
+	 */
+	public void electionFinished(long nanos) {
+		electionDuration.record(nanos);
+	}
+
+	/**
+	 * @param nanos time from the leader's last sign of life until this node suspected it
+	 */
+	public void failureDetected(long nanos) {
+		failureDetection.record(nanos);
+	}
+
+	public long getElectionsSent() {
+		return electionsSent.sum();
+	}
+
+	public long getOksSent() {
+		return oksSent.sum();
+	}
+
+	public long getGrantsSent() {
+		return grantsSent.sum();
+	}
+
+	public long getCoordinatorsSent() {
+		return coordinatorsSent.sum();
+	}
+
+	public long getElectionsReceived() {
+		return electionsReceived.sum();
+	}
+
+	public long getOksReceived() {
+		return oksReceived.sum();
+	}
+
+	public long getGrantsReceived() {
+		return grantsReceived.sum();
+	}
+
+	public long getCoordinatorsReceived() {
+		return coordinatorsReceived.sum();
+	}
+
+	public long getRounds() {
+		return rounds.sum();
+	}
+
+	public long getReElections() {
+		return reElections.sum();
+	}
+
+	public long getStaleDropped() {
+		return staleDropped.sum();
+	}
+
+	/**
+	 * @return System.nanoTime() when this node last started an election, or 0 if it never did
+	 */
+	public long getLastRoundStart() {
+		return lastRoundStart;
+	}
+
+	public LatencyHistogram getElectionDuration() {
+		return electionDuration;
+	}
+
+	public LatencyHistogram getFailureDetection() {
+		return failureDetection;
+	}
+
+	public void reset() {
+		electionsSent.reset();
+		oksSent.reset();
+		grantsSent.reset();
+		coordinatorsSent.reset();
+		electionsReceived.reset();
+		oksReceived.reset();
+		grantsReceived.reset();
+		coordinatorsReceived.reset();
+		rounds.reset();
+		reElections.reset();
+		staleDropped.reset();
+		electionDuration.reset();
+		failureDetection.reset();
+		lastRoundStart = 0;
+	}
+
+	@Override
+	public String toString() {
+		long r = Math.max(1, getRounds());
+		return "rounds=" + getRounds() + " reElections=" + getReElections() + " staleDropped=" + getStaleDropped()
+				+ " sent ELECTION/OK/GRANT/COORDINATOR=" + getElectionsSent() + "/" + getOksSent() + "/" + getGrantsSent()
+				+ "/" + getCoordinatorsSent()
+				+ " (per round " + (getElectionsSent() + getOksSent() + getGrantsSent() + getCoordinatorsSent()) / r + ")"
+				+ " duration " + electionDuration + " detection " + failureDetection;
+	}
+}
@@ -0,0 +1,93 @@
+package node;
+
+/**
+ * Single-producer single-consumer ring buffer of length-prefixed frames.
+ * The I/O thread copies complete frames in and a worker copies them out into a reusable
+ * buffer, so handing a message from one thread to the other allocates nothing.
+ */
+public class FrameRing {
+	private final byte[] ring;
+	private final int mask;
+	private volatile long head = 0;		// next write position, written by the producer only
+	private volatile long tail = 0;		// next read position, written by the consumer only
+
+	/**
+	 * @param capacity size in bytes, rounded up to a power of two
+	 */
+	public FrameRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+		this.ring = new byte[size];
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Copies a frame into the ring (producer only)
+	 * @return false if there is not enough free space
+	 */
+	public boolean offer(byte[] src, int offset, int length) {
+		long h = head;
+		if (ring.length - (h - tail) < 4 + length) {
+			return false;
+		}
+		putByte(h, length >>> 24);
+		putByte(h + 1, length >>> 16);
+		putByte(h + 2, length >>> 8);
+		putByte(h + 3, length);
+		copyIn(h + 4, src, offset, length);
+		head = h + 4 + length;		// publish after the bytes are written
+		return true;
+	}
+
+	/**
+	 * Copies the oldest frame out of the ring (consumer only)
+	 * @param dst destination, must be large enough for any frame offered
+	 * @return length of the frame, or -1 if the ring is empty
+	 */
+	public int poll(byte[] dst) {
+		long t = tail;
+		if (t == head) {
+			return -1;
+		}
+		int length = (getByte(t) << 24) | (getByte(t + 1) << 16) | (getByte(t + 2) << 8) | getByte(t + 3);
+		copyOut(t + 4, dst, length);
+		tail = t + 4 + length;		// release the space after the bytes are read
+		return length;
+	}
+
+	public boolean isEmpty() {
+		return tail == head;
+	}
+
+	/**
+	 * @return bytes in use, including length prefixes
+	 */
+	public int size() {
+		return (int) (head - tail);
+	}
+
+	public int capacity() {
+		return ring.length;
+	}
+
+	private void putByte(long pos, int b) {
+		ring[(int) pos & mask] = (byte) b;
+	}
+
+	private int getByte(long pos) {
+		return ring[(int) pos & mask] & 0xFF;
+	}
+
+	private void copyIn(long pos, byte[] src, int offset, int length) {
+		int start = (int) pos & mask;
+		int first = Math.min(length, ring.length - start);
+		System.arraycopy(src, offset, ring, start, first);
+		System.arraycopy(src, offset + first, ring, 0, length - first);
+	}
+
+	private void copyOut(long pos, byte[] dst, int length) {
+		int start = (int) pos & mask;
+		int first = Math.min(length, ring.length - start);
+		System.arraycopy(ring, start, dst, 0, first);
+		System.arraycopy(ring, 0, dst, first, length - first);
+	}
+}
@@ -1,26 +1,51 @@
 package node;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
 
 /**
  * Manages heartbeat messages for automatic failure detection.
  * Can be enabled/disabled for demonstration purposes.
  * When enabled:
- * - Leaders send regular heartbeats to all peers
- * - Followers monitor heartbeats and trigger elections on timeout
+ * - Leaders send regular heartbeats to all peers and track the followers' acks in a
+ *   {@link PeerHealthTable}, evicting followers that stop answering
+ * - Followers feed the leader's heartbeats to a phi-accrual failure detector and
+ *   trigger an election once the leader is suspected
  */
 public class HeartbeatManager {
 	private static final Logger logger = Logger.getLogger(HeartbeatManager.class.getName());
 	
-    private static final int HEARTBEAT_INTERVAL = 2500;  // ms
-    private static final int HEARTBEAT_TIMEOUT  = 5000;  // ms
+    private static final int HEARTBEAT_INTERVAL = 500;   // ms
+    private static final int CHECK_INTERVAL     = 100;   // ms between suspicion checks
+    private static final double PHI_THRESHOLD   = 8.0;
+    private static final int PHI_WINDOW         = 100;   // heartbeat intervals remembered
+    private static final int MIN_STD_DEVIATION  = 100;   // ms
+    private static final int ACCEPTABLE_PAUSE   = 500;   // ms, e.g. a GC pause on the leader
+    // A peer written to within this window gets no heartbeat; half the interval keeps the
+    // longest silence a follower sees below 1.5 intervals
+    private static final int SUPPRESS_WINDOW    = HEARTBEAT_INTERVAL / 2;
+    // Followers must still ack now and then, so a busy peer is probed at least this often
+    private static final int ACK_REFRESH        = 4 * HEARTBEAT_INTERVAL;
+    private static final int ACK_TIMEOUT        = HEARTBEAT_INTERVAL;	// ms, an ack later than the next heartbeat is a miss
+    private static final int MAX_MISSED_ACKS    = 3;
+    private static final int EVICT_TIMEOUT      = 5000;  // ms without any sign of life from a follower
 
     private final Node node;
     private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    private final PhiAccrualFailureDetector detector = new PhiAccrualFailureDetector(
+    		PHI_THRESHOLD, PHI_WINDOW, MIN_STD_DEVIATION, ACCEPTABLE_PAUSE, HEARTBEAT_INTERVAL);
 
-    private volatile long lastHeartbeat = System.currentTimeMillis();
+    private final PeerHealthTable peerHealth = new PeerHealthTable(MAX_MISSED_ACKS, ACK_TIMEOUT, EVICT_TIMEOUT);
+
+    private volatile int monitoredLeader = -1;   // leader whose heartbeats the detector is tracking
+    private boolean leading = false;             // leader task only
+    private final byte[] ackFrame;               // pre-encoded HEARTBEAT_ACK, the same for every heartbeat
     private volatile boolean enabled = false;
+    private final LongAdder heartbeatsSent = new LongAdder();
+    private final LongAdder heartbeatsSuppressed = new LongAdder();
     
     /**
      * Enable or disable heartbeat mechanism
@@ -30,14 +55,32 @@ public class HeartbeatManager {
             logger.info("Node " + node.getId() + " " + (on ? "enabling" : "disabling") + " heartbeat mechanism");
             enabled = on;
         }
-    	// Reset heartbeat timer when enabling to prevent immediate false timeout
+    	// Restart monitoring when enabling to prevent immediate false suspicion
         if (on) {
-            lastHeartbeat = System.currentTimeMillis();
+            monitor(node.getCurrentLeader(), System.currentTimeMillis());
         }
     }
+    
+    /**
+     * Sets how suspicious of the leader a follower must be before starting an election.
+     * Lower values detect failures sooner but mistake slow heartbeats for failures more often.
+     * @param threshold phi threshold, 8 by default
+     */
+    public void setPhiThreshold(double threshold) {
+    	detector.setThreshold(threshold);
+    }
 
     public HeartbeatManager(Node node) {
         this.node = node;
+        this.ackFrame = node.getMessenger().getCodec().encode(
+        		new Message(Message.Type.HEARTBEAT_ACK, node.getId(), -1, ""));
+    }
+    
+    /**
+     * @return true if heartbeats are being sent and checked
+     */
+    public boolean isEnabled() {
+    	return enabled;
     }
     
     /**
@@ -47,68 +90,194 @@ public class HeartbeatManager {
     	logger.info("Node " + node.getId() + " starting heartbeat manager");
     	
         scheduler.scheduleAtFixedRate(() -> {
-        	if (!enabled) return;
-        	
-            if (node.isLeader()) {
-                // I am leader → send heartbeats to all
+        	boolean leader = enabled && node.isLeader();
+        	if (leader && !leading) {
+        		// Acks seen during an earlier leadership say nothing about the peers now
+        		peerHealth.clear();
+        	}
+        	leading = leader;
+        	if (leader) {
+                // I am leader → send heartbeats to all, then drop followers that stopped acking
                 sendHeartbeats();
+                evictUnresponsive();
             } 
-            else {
-                // I am follower → check heartbeat timeout
+        }, 0, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+        scheduler.scheduleAtFixedRate(() -> {
+        	if (enabled && !node.isLeader()) {
+                // I am follower → check whether the leader is suspected
                 checkLeaderTimeout();
             }
-        }, 0, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+        }, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Stops sending and checking heartbeats for good.
+     */
+    public void stop() {
+    	enabled = false;
+    	scheduler.shutdownNow();
     }
     
     /**
-     * Send heartbeats to all peers (leader role).
+     * Send heartbeats to all peers the leader has not written to recently (leader role).
+     * Chats, batches and other leader traffic already prove liveness, so on a busy
+     * cluster most heartbeats are skipped; a peer that has not acked for a while is
+     * probed anyway.
      */
     private void sendHeartbeats() {
-        logger.info("Node " + node.getId() + " (leader) sending heartbeats to all peers");
-        
-        Message hb = new Message(Message.Type.HEARTBEAT, node.getId(), -1, String.valueOf(node.getCurrentLeader()));
-        for (int peerId : node.getPeerConfig().getPeerIds()) {
+        long now = System.currentTimeMillis();
+        long nowNanos = System.nanoTime();
+        List<Integer> idle = new ArrayList<>();
+        PeerConfig.Snapshot peers = node.getPeerConfig().snapshot();
+        for (int i = 0; i < peers.size(); i++) {
+        	int peerId = peers.idAt(i);
         	if (peerId == node.getId()) continue;
-            try {
-                int peerPort = node.getPeerConfig().getPort(peerId);
-                node.getMessenger().sendMessage(peerPort, hb);
-            } catch (Exception e) {
-                logger.fine("Failed to send heartbeat to Node " + peerId);
-            }
+        	int peerPort = peers.portAt(i);
+        	if (now - node.getMessenger().lastSentTo(peerPort) >= SUPPRESS_WINDOW
+        			|| !peerHealth.aliveWithin(peerId, nowNanos, ACK_REFRESH)) {
+        		idle.add(peerId);
+        		peerHealth.probeSent(peerId, nowNanos);
+        	}
+        	else {
+        		heartbeatsSuppressed.increment();
+        	}
         }
+        if (idle.isEmpty()) return;
+        logger.fine("Node " + node.getId() + " (leader) sending heartbeats to " + idle.size() + " idle peers");
+        
+        // seq carries the next chat sequence so followers notice chats lost at the end of the stream
+        Message hb = new Message(Message.Type.HEARTBEAT, node.getId(), node.getChatManager().nextSequence(),
+        		String.valueOf(node.getCurrentLeader()), node.getElectionManager().getLeaderTerm());
+        node.getBroadcaster().multicast(hb, idle);
+        heartbeatsSent.add(idle.size());
+    }
+    
+    /**
+     * Evicts followers the health table suspects (leader role). They are removed from the
+     * membership, so broadcasts stop queueing messages for them.
+     */
+    private void evictUnresponsive() {
+    	for (int peerId : peerHealth.suspects(System.nanoTime())) {
+    		logger.warning("Node " + node.getId() + " (leader) lost contact with Node " + peerId
+    				+ " after " + peerHealth.consecutiveFailures(peerId) + " missed acks");
+    		peerHealth.remove(peerId);
+    		node.getShutdownManager().evictPeer(peerId);
+    	}
+    }
+    
+    /**
+     * Receive a follower's answer to a heartbeat (leader role)
+     */
+    public void receivedAck(int peerId) {
+    	if (node.isLeader()) {
+    		peerHealth.ackReceived(peerId, System.nanoTime());
+    	}
+    }
+    
+    /**
+     * Any message a follower sent on its own proves it is alive, like an ack (leader role)
+     */
+    public void peerActivity(int peerId) {
+    	peerHealth.activity(peerId, System.nanoTime());
+    }
+    
+    /**
+     * A message to the peer could not be delivered (leader role)
+     */
+    public void sendFailed(int peerId) {
+    	peerHealth.sendFailed(peerId, System.nanoTime());
+    }
+    
+    /**
+     * @return the leader's per-follower ack times, round-trip times and missed acks
+     */
+    public PeerHealthTable getPeerHealth() {
+    	return peerHealth;
     }
 
     /**
-     * Check if leader has timed out (follower role).
+     * @return heartbeats sent by this node as leader
+     */
+    public long getHeartbeatsSent() {
+    	return heartbeatsSent.sum();
+    }
+    
+    /**
+     * @return heartbeats skipped because other traffic to the peer already proved liveness
+     */
+    public long getHeartbeatsSuppressed() {
+    	return heartbeatsSuppressed.sum();
+    }
+
+    /**
+     * Check if leader is suspected to have failed (follower role).
      */
     private void checkLeaderTimeout() {
         long now = System.currentTimeMillis();
-        long elapsed = now - lastHeartbeat;
+        int leaderId = node.getCurrentLeader();
+        if (leaderId != monitoredLeader) {
+        	// New leader (or none): give it a fresh history, starting now
+        	monitor(leaderId, now);
+        	return;
+        }
         
-        if (elapsed > HEARTBEAT_TIMEOUT) {
-            int leaderId = node.getCurrentLeader();
-            logger.warning("Node " + node.getId() + " detected leader (Node " + leaderId + 
-                    ") timeout after " + elapsed + "ms! Triggering election...");
+        double phi = detector.phi(leaderId, now);
+        if (phi > detector.getThreshold()) {
+        	long elapsed = now - detector.lastHeartbeat(leaderId);
+            logger.warning("Node " + node.getId() + " suspects leader (Node " + leaderId + 
+                    ") after " + elapsed + "ms without heartbeat (phi " + String.format("%.1f", phi) + ")! Triggering election...");
+            node.getElectionManager().getMetrics().failureDetected(TimeUnit.MILLISECONDS.toNanos(elapsed));
             
             node.getElectionManager().initiateElection();
-            lastHeartbeat = now; // prevent spamming multiple elections
+            monitor(leaderId, now); // prevent spamming multiple elections
         } else {
-            logger.finest("Node " + node.getId() + " heartbeat check: " + elapsed +
-                    "ms since last heartbeat (timeout: " + HEARTBEAT_TIMEOUT + "ms)");
+            logger.finest("Node " + node.getId() + " heartbeat check: phi " + phi
+            		+ " (threshold: " + detector.getThreshold() + ")");
         }
     }
     
     /**
-     * Receive heartbeat from leader
-     * @param msg heartbeat message
+     * Starts tracking a leader's heartbeats from scratch, as if one had just arrived
+     */
+    private void monitor(int leaderId, long now) {
+    	detector.remove(monitoredLeader);
+    	detector.remove(leaderId);
+    	detector.heartbeat(leaderId, now);
+    	monitoredLeader = leaderId;
+    }
+    
+    /**
+     * Any message from the leader counts as a heartbeat. Must not allocate.
+     * @param leaderId current leader
      */
-    public void receivedHeartbeat(Message msg) {
-        int hbLeader = msg.getSenderId();
+    public void leaderActivity(int leaderId) {
+    	if (enabled && leaderId == monitoredLeader) {
+    		detector.heartbeat(leaderId, System.currentTimeMillis());
+    	}
+    }
+    
+    /**
+     * Receive heartbeat from leader and ack it. Called for every heartbeat; decoding
+     * allocates nothing and the ack reuses one pre-encoded frame.
+     * @param hbLeader id of the leader that sent the heartbeat
+     * @param nextChatSeq the leader's next chat sequence number, used to detect lost chats
+     * @param term term in which the sender was elected; heartbeats of a superseded leader are ignored
+     */
+    public void receivedHeartbeat(int hbLeader, int nextChatSeq, long term) {
+    	// Also switches to the sender if it is a new leader - used for dynamic discovery
+    	if (!node.getElectionManager().observeLeader(hbLeader, term)) {
+    		logger.fine("Node " + node.getId() + " ignoring heartbeat of superseded leader Node " + hbLeader);
+    		return;
+    	}
 
-        // Update only if we previously had no leader OR the ID changed - used for dynamic discovery
-        if (node.getCurrentLeader() != hbLeader) {
-            node.setLeader(hbLeader);
+        if (hbLeader == monitoredLeader) {
+        	detector.heartbeat(hbLeader, System.currentTimeMillis());
+        }
+        node.getChatManager().leaderProgress(nextChatSeq);
+        
+        int leaderPort = node.getPeerConfig().getPort(hbLeader);
+        if (leaderPort != -1) {
+        	node.getMessenger().sendFrame(leaderPort, ackFrame);
         }
-        lastHeartbeat = System.currentTimeMillis();
     }
 }
@@ -0,0 +1,356 @@
+package node;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Selector-based inbound engine. One I/O thread accepts and reads every peer connection,
+ * splits the streams into message frames and hands them to a bounded worker pool for decoding.
+ * Messages of one connection are handled in arrival order; different connections run in parallel.
+ * When a connection's frame ring is full, or the pool rejects work, reading from that
+ * connection is paused until the workers catch up, pushing back on the sender via TCP.
+ * In steady state reading, handing over and decoding a frame reuses per-connection buffers.
+ */
+public class InboundServer {
+	private static final Logger logger = Logger.getLogger(InboundServer.class.getName());
+
+	private static final int WORKER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+	private static final int WORK_QUEUE_CAPACITY = 1024;
+	private static final int MAX_FRAME_LENGTH = MessageCodec.MAX_FRAME_LENGTH;
+	private static final int RING_CAPACITY = 2 * MAX_FRAME_LENGTH;		// bytes read but not yet handled, per connection
+	private static final int READ_BUFFER_SIZE = 8192;
+	private static final int SELECT_TIMEOUT = 100;				// ms, bounds the retry delay for paused connections
+
+	private final int port;
+	private final MessageHandler messageHandler;
+	private final Selector selector;
+	private final ThreadPoolExecutor workers;
+	private final Set<InboundConnection> paused = new HashSet<>();	// I/O thread only
+	private final Queue<InboundConnection> stalled = new ConcurrentLinkedQueue<>();	// rejected by a worker
+	private final Consumer<SelectionKey> keyHandler = this::handleKey;
+	private ServerSocketChannel server;
+	private volatile boolean running = true;
+
+	public InboundServer(int port, MessageHandler messageHandler) throws IOException {
+		this.port = port;
+		this.messageHandler = messageHandler;
+		this.selector = Selector.open();
+		this.workers = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(WORK_QUEUE_CAPACITY), r -> {
+					Thread t = new Thread(r, "inbound-worker-" + port);
+					t.setDaemon(true);
+					return t;
+				}, new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	/**
+	 * Binds the port and runs the I/O loop on the calling thread until {@link #stop()} is called.
+	 * @throws IOException if the port cannot be bound
+	 */
+	public void run() throws IOException {
+		try (ServerSocketChannel server = ServerSocketChannel.open()) {
+			this.server = server;
+			server.bind(new InetSocketAddress(port));
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+
+			while (running) {
+				selector.select(keyHandler, SELECT_TIMEOUT);
+				InboundConnection conn;
+				while ((conn = stalled.poll()) != null) {
+					pause(conn);
+				}
+				resumePaused();
+			}
+		}
+		finally {
+			for (SelectionKey key : selector.keys()) {
+				close(key);
+			}
+			selector.close();
+			workers.shutdown();
+		}
+	}
+
+	/**
+	 * Stops the I/O loop and releases the port.
+	 */
+	public void stop() {
+		running = false;
+		selector.wakeup();
+	}
+
+	private void handleKey(SelectionKey key) {
+		if (!key.isValid()) return;
+		try {
+			if (key.isAcceptable()) {
+				accept();
+			}
+			else if (key.isReadable()) {
+				read(key);
+			}
+		}
+		catch (IOException e) {
+			logger.fine("Inbound connection closed: " + e.getMessage());
+			close(key);
+		}
+	}
+
+	private void accept() {
+		SocketChannel channel;
+		try {
+			channel = server.accept();
+		}
+		catch (IOException e) {
+			// e.g. out of file descriptors; the listening socket itself stays open
+			logger.warning("Failed to accept inbound connection: " + e.getMessage());
+			return;
+		}
+		if (channel == null) return;
+		try {
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+			key.attach(new InboundConnection(key));
+			logger.finest("Accepted inbound connection from " + channel.getRemoteAddress());
+		}
+		catch (IOException e) {
+			logger.fine("Inbound connection closed: " + e.getMessage());
+			try {
+				channel.close();
+			}
+			catch (IOException ignored) {}
+		}
+	}
+
+	private void read(SelectionKey key) throws IOException {
+		InboundConnection conn = (InboundConnection) key.attachment();
+		SocketChannel channel = (SocketChannel) key.channel();
+		if (channel.read(conn.readBuffer) < 0) {
+			close(key);
+			return;
+		}
+		boolean consumed = conn.consume();
+		if (!conn.schedule() || !consumed) {
+			pause(conn);
+		}
+	}
+
+	private void pause(InboundConnection conn) {
+		if (conn.key.isValid() && paused.add(conn)) {
+			conn.key.interestOps(0);
+			conn.paused = true;
+			if (logger.isLoggable(Level.FINE)) {
+				logger.fine("Pausing inbound connection, " + conn.ring.size() + " bytes pending");
+			}
+		}
+	}
+
+	/**
+	 * Re-enables reading on paused connections once their ring has room for
+	 * the bytes already read and the worker pool accepts their work again.
+	 */
+	private void resumePaused() {
+		if (paused.isEmpty()) return;
+		Iterator<InboundConnection> it = paused.iterator();
+		while (it.hasNext()) {
+			InboundConnection conn = it.next();
+			if (!conn.key.isValid()) {
+				it.remove();
+				continue;
+			}
+			try {
+				if (conn.ring.size() < conn.ring.capacity() / 2 && conn.consume() && conn.schedule()) {
+					conn.key.interestOps(SelectionKey.OP_READ);
+					conn.paused = false;
+					it.remove();
+				}
+				else {
+					conn.schedule();
+				}
+			}
+			catch (IOException e) {
+				logger.fine("Inbound connection closed: " + e.getMessage());
+				close(conn.key);
+				it.remove();
+			}
+		}
+	}
+
+	private void close(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		}
+		catch (IOException ignored) {}
+	}
+
+	/**
+	 * Per-connection framing state and the ring of frames awaiting a worker.
+	 * The first byte of the connection selects the codec: the binary preamble, which is echoed back
+	 * to confirm it, or else JSON lines.
+	 */
+	private class InboundConnection {
+		private final SelectionKey key;
+		private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		private MessageCodec codec;			// null until the first byte arrives
+		private final byte[] frame = new byte[MAX_FRAME_LENGTH];
+		private int frameFill = 0;
+		private int frameLength = -1;		// binary: -1 while reading the length prefix
+		private int lengthValue = 0;
+		private int lengthShift = 0;
+		private boolean frameReady = false;	// complete frame waiting for room in the ring
+
+		private final FrameRing ring = new FrameRing(RING_CAPACITY);
+		private final byte[] scratch = new byte[MAX_FRAME_LENGTH];	// worker side copy of one frame
+		private final ByteBuffer scratchView = ByteBuffer.wrap(scratch);
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+		private final Runnable drainTask = this::drain;
+		private volatile boolean paused = false;
+
+		InboundConnection(SelectionKey key) {
+			this.key = key;
+		}
+
+		/**
+		 * Moves every complete frame in the read buffer into the ring (I/O thread only).
+		 * @return false if the ring filled up; the remaining bytes stay buffered
+		 */
+		boolean consume() throws IOException {
+			readBuffer.flip();
+			try {
+				if (frameReady && !publish()) {
+					return false;
+				}
+				while (readBuffer.hasRemaining()) {
+					if (codec == null) {
+						if ((readBuffer.get(readBuffer.position()) & 0xFF) == BinaryCodec.PREAMBLE) {
+							readBuffer.get();
+							codec = MessageCodec.BINARY;
+							// One byte fits an empty send buffer; if it did not, the sender just falls back to JSON
+							((SocketChannel) key.channel()).write(ByteBuffer.wrap(new byte[] {(byte) BinaryCodec.PREAMBLE}));
+						}
+						else {
+							codec = MessageCodec.JSON;
+						}
+					}
+					else if (codec == MessageCodec.BINARY) {
+						splitBinary();
+					}
+					else {
+						splitLine();
+					}
+					if (frameReady && !publish()) {
+						return false;
+					}
+				}
+				return true;
+			}
+			finally {
+				readBuffer.compact();
+			}
+		}
+
+		private boolean publish() {
+			if (!ring.offer(frame, 0, frameLength)) {
+				return false;
+			}
+			frameReady = false;
+			frameLength = -1;
+			frameFill = 0;
+			return true;
+		}
+
+		private void splitLine() throws IOException {
+			byte b = readBuffer.get();
+			if (b == '\n') {
+				int len = frameFill;
+				if (len > 0 && frame[len - 1] == '\r') len--;
+				frameLength = len;
+				frameReady = true;
+			}
+			else {
+				if (frameFill == MAX_FRAME_LENGTH) {
+					throw new IOException("Inbound message exceeds " + MAX_FRAME_LENGTH + " bytes");
+				}
+				frame[frameFill++] = b;
+			}
+		}
+
+		private void splitBinary() throws IOException {
+			if (frameLength < 0) {
+				byte b = readBuffer.get();
+				lengthValue |= (b & 0x7F) << lengthShift;
+				lengthShift += 7;
+				if ((b & 0x80) == 0) {
+					if (lengthValue <= 0 || lengthValue > MAX_FRAME_LENGTH) {
+						throw new IOException("Invalid frame length " + lengthValue);
+					}
+					frameLength = lengthValue;
+					frameFill = 0;
+					lengthValue = 0;
+					lengthShift = 0;
+				}
+				else if (lengthShift >= 35) {
+					throw new IOException("Malformed frame length");
+				}
+				return;
+			}
+			int n = Math.min(readBuffer.remaining(), frameLength - frameFill);
+			readBuffer.get(frame, frameFill, n);
+			frameFill += n;
+			if (frameFill == frameLength) {
+				frameReady = true;
+			}
+		}
+
+		/**
+		 * Makes sure a worker is draining this connection.
+		 * @return false if the worker pool is saturated
+		 */
+		boolean schedule() {
+			if (ring.isEmpty() || !scheduled.compareAndSet(false, true)) {
+				return true;
+			}
+			try {
+				workers.execute(drainTask);
+				return true;
+			}
+			catch (RejectedExecutionException e) {
+				scheduled.set(false);
+				return false;
+			}
+		}
+
+		private void drain() {
+			int length;
+			while ((length = ring.poll(scratch)) >= 0) {
+				scratchView.clear().limit(length);
+				try {
+					messageHandler.handleFrame(codec, scratchView);
+				}
+				catch (RuntimeException e) {
+					logger.log(Level.WARNING, "Failed to handle inbound message", e);
+				}
+			}
+			scheduled.set(false);
+			// A frame may have arrived between the last poll and releasing the flag
+			if (!schedule()) {
+				stalled.add(this);
+				selector.wakeup();
+			}
+			else if (paused) {
+				selector.wakeup();
+			}
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package node;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONException;
+
+/**
+ * Newline-delimited JSON codec built on {@link Message#toJson()} and {@link Message#fromJson(String)}.
+ */
+public class JsonCodec implements MessageCodec {
+
+	@Override
+	public int preamble() {
+		return -1;
+	}
+
+	@Override
+	public byte[] encode(Message message) {
+		return (message.toJson() + "\n").getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public ByteBuffer unframe(byte[] frame) {
+		int length = frame.length > 0 && frame[frame.length - 1] == '\n' ? frame.length - 1 : frame.length;
+		return ByteBuffer.wrap(frame, 0, length);
+	}
+
+	@Override
+	public Message decode(ByteBuffer frame) {
+		String json = StandardCharsets.UTF_8.decode(frame).toString();
+		try {
+			return Message.fromJson(json);
+		}
+		catch (JSONException e) {
+			throw new IllegalArgumentException("Invalid JSON message: " + json, e);
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package node;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free log-linear latency histogram in microseconds.
+ * Each power of two is split into 8 linear sub-buckets, so reported percentiles
+ * are within ~12% of the true value. Safe to record from any thread.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * Records one sample
+	 * @param nanos elapsed time in nanoseconds
+	 */
+	public void record(long nanos) {
+		long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+		counts.incrementAndGet(indexOf(micros));
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return upper bound of the bucket holding that percentile, in microseconds, or 0 if empty
+	 */
+	public long percentile(double percentile) {
+		long total = count();
+		if (total == 0) return 0;
+		long rank = (long) Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= Math.max(rank, 1)) {
+				return upperBoundOf(i);
+			}
+		}
+		return upperBoundOf(BUCKETS - 1);
+	}
+
+	public long count() {
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			total += counts.get(i);
+		}
+		return total;
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "n=" + count() + " p50=" + percentile(50) + "us p99=" + percentile(99) + "us";
+	}
+
+	private static int indexOf(long micros) {
+		if (micros < SUB_BUCKETS) return (int) micros;
+		int magnitude = 63 - Long.numberOfLeadingZeros(micros);	// >= SUB_BUCKET_BITS
+		int shift = magnitude - SUB_BUCKET_BITS;
+		int sub = (int) (micros >>> shift) & (SUB_BUCKETS - 1);
+		return (shift + 1) * SUB_BUCKETS + sub;
+	}
+
+	private static long upperBoundOf(int index) {
+		if (index < SUB_BUCKETS) return index;
+		int shift = index / SUB_BUCKETS - 1;
+		int sub = index % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,149 @@
+package node;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Transport between nodes in the same JVM. Every listening node has an inbox, a lock-free
+ * queue that any number of senders append to and the listening thread drains. No sockets or
+ * file descriptors are used, so hundreds of nodes can run in one process for load tests.
+ * Sending to a port nobody listens on fails like a refused TCP connection.
+ */
+public class LocalTransport implements Transport {
+	private static final Logger logger = Logger.getLogger(LocalTransport.class.getName());
+	private static final long IDLE_PARK = TimeUnit.MILLISECONDS.toNanos(100);	// re-checks the running flag
+
+	/**
+	 * The set of inboxes that nodes sharing it can reach, by port.
+	 */
+	public static class Network {
+		private final ConcurrentHashMap<Integer, Inbox> inboxes = new ConcurrentHashMap<>();
+
+		/**
+		 * @return number of nodes currently listening
+		 */
+		public int size() {
+			return inboxes.size();
+		}
+	}
+
+	private final Network network;
+	private final MessageCodec codec;
+	private volatile Inbox inbox;
+
+	public LocalTransport(Network network, MessageCodec codec) {
+		this.network = network;
+		this.codec = codec;
+	}
+
+	@Override
+	public void listen(int port, MessageHandler handler) throws IOException {
+		Inbox own = new Inbox(port, Thread.currentThread());
+		if (network.inboxes.putIfAbsent(port, own) != null) {
+			throw new BindException("Port " + port + " already in use");
+		}
+		inbox = own;
+		try {
+			own.drain(handler);
+		}
+		finally {
+			network.inboxes.remove(port, own);
+		}
+	}
+
+	@Override
+	public void stop() {
+		Inbox own = inbox;
+		if (own != null) {
+			network.inboxes.remove(own.port, own);
+			own.running = false;
+			LockSupport.unpark(own.owner);
+		}
+	}
+
+	@Override
+	public void send(int targetPort, byte[] frame) throws IOException {
+		Inbox target = network.inboxes.get(targetPort);
+		if (target == null || !target.running) {
+			throw new ConnectException("Connection refused: port " + targetPort);
+		}
+		target.offer(new Frame(codec, frame));
+	}
+
+	@Override
+	public void disconnect(int targetPort) {
+		// Nothing is held per peer
+	}
+
+	@Override
+	public CompletableFuture<Boolean> probe(int targetPort, int timeoutMillis) {
+		Inbox target = network.inboxes.get(targetPort);
+		return CompletableFuture.completedFuture(target != null && target.running);
+	}
+
+	@Override
+	public void close() {
+		stop();
+	}
+
+	@Override
+	public MessageCodec getCodec() {
+		return codec;
+	}
+
+	private static class Frame {
+		private final MessageCodec codec;
+		private final byte[] bytes;
+
+		Frame(MessageCodec codec, byte[] bytes) {
+			this.codec = codec;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * Multi-producer single-consumer queue of frames for one listening node.
+	 */
+	private static class Inbox {
+		private final int port;
+		private final Thread owner;
+		private final Queue<Frame> frames = new ConcurrentLinkedQueue<>();
+		private volatile boolean running = true;
+
+		Inbox(int port, Thread owner) {
+			this.port = port;
+			this.owner = owner;
+		}
+
+		void offer(Frame frame) {
+			frames.offer(frame);
+			// A permit given before the owner parks is kept, so no wake-up is lost
+			LockSupport.unpark(owner);
+		}
+
+		void drain(MessageHandler handler) {
+			while (running) {
+				Frame frame = frames.poll();
+				if (frame == null) {
+					LockSupport.parkNanos(this, IDLE_PARK);
+					continue;
+				}
+				try {
+					handler.handleFrame(frame.codec, frame.codec.unframe(frame.bytes));
+				}
+				catch (RuntimeException e) {
+					logger.log(Level.WARNING, "Failed to handle inbound message", e);
+				}
+			}
+		}
+	}
+}
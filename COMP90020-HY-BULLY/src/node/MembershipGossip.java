@@ -0,0 +1,424 @@
+package node;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * SWIM-style dissemination of membership changes. A join or leave is recorded once, by the
+ * node that learned of it, as a versioned delta. While any deltas are pending, a gossip round
+ * every {@link #GOSSIP_INTERVAL} sends them to a few random peers, and they also ride along
+ * on messages this node sends anyway. Every node that applies a new delta passes it on the
+ * same way, so a change reaches all N nodes in O(log N) rounds. Each node gossips a delta for
+ * at most {@link #RETRANSMIT_MULTIPLIER}·log2(N) rounds, fewer if it keeps hearing it back.
+ * <p>
+ * Each member has an incarnation, the time its process started. A delta only wins over
+ * what a node already knows if it is about a newer incarnation, or declares the same
+ * incarnation dead; a delayed "joined" can therefore never revive a departed node, while a
+ * restarted node replaces its old entry. Delta format: {@code +id:port:incarnation} for
+ * alive, {@code -id:port:incarnation} for departed, comma separated.
+ * <p>
+ * A node declared departed while still alive, e.g. evicted after a long pause, is told so
+ * directly. It refutes by raising its incarnation and gossiping itself alive again, which
+ * wins over the departure everywhere.
+ * <p>
+ * The peer config is only changed after leaving this object's monitor: removing a peer can
+ * reset the leader, which reaches into the chat outbox, whose holders may be sending a message
+ * and so waiting here to piggy-back deltas.
+ */
+public class MembershipGossip {
+	private static final Logger logger = Logger.getLogger(MembershipGossip.class.getName());
+	private static final int GOSSIP_INTERVAL = 200;		// ms
+	private static final int FANOUT = 3;					// random peers per gossip round
+	private static final int RETRANSMIT_MULTIPLIER = 3;
+	private static final int MAX_PIGGYBACK = 8;			// deltas per message
+
+	private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "gossip-timer");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final Node node;
+	private long incarnation = System.currentTimeMillis();		// guarded by this
+	private volatile boolean leaving = false;		// leaving for good, so departures are not refuted
+	// When each member outside the peer config was last told or re-checked, guarded by this
+	private final Map<Integer, Long> noticed = new HashMap<>();
+	// Latest known state of every member, departed ones included, guarded by this
+	private final Map<Integer, Member> members = new HashMap<>();
+	// Deltas still to be passed on, by member id, guarded by this
+	private final LinkedHashMap<Integer, Delta> pending = new LinkedHashMap<>();
+	private volatile boolean hasPending = false;
+	private long version = 0;		// membership changes applied, guarded by this
+	private long snapshotVersion = -1;	// version of the last snapshot adopted, guarded by this
+	private final ScheduledFuture<?> rounds;
+
+	public MembershipGossip(Node node) {
+		this.node = node;
+		PeerConfig.Snapshot peers = node.getPeerConfig().snapshot();
+		for (int i = 0; i < peers.size(); i++) {
+			// Incarnations of configured peers are unknown until gossip about them arrives
+			members.put(peers.idAt(i), new Member(peers.portAt(i), 0, true));
+		}
+		members.put(node.getId(), new Member(node.getPort(), incarnation, true));
+		rounds = timer.scheduleAtFixedRate(this::gossipRound, GOSSIP_INTERVAL, GOSSIP_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return start time of this node's process, which identifies this run of the node to the cluster,
+	 *         raised each time the node refutes a departure
+	 */
+	public synchronized long getIncarnation() {
+		return incarnation;
+	}
+
+	/**
+	 * Stops refuting departures, as this node is leaving the cluster.
+	 */
+	public void leave() {
+		leaving = true;
+	}
+
+	/**
+	 * @return true once this node is leaving the cluster or has stopped
+	 */
+	public boolean isLeaving() {
+		return leaving;
+	}
+
+	/**
+	 * Records that a node joined and spreads the news
+	 * @param incarnation the joiner's incarnation
+	 */
+	public void joined(int id, int port, long incarnation) {
+		Delta delta = new Delta(id, port, incarnation, true);
+		boolean news;
+		synchronized (this) {
+			news = apply(delta);
+		}
+		if (news) enact(List.of(delta));
+	}
+
+	/**
+	 * Records that a node left or was evicted and spreads the news
+	 */
+	public void departed(int id) {
+		Delta delta;
+		synchronized (this) {
+			Member known = members.get(id);
+			int port = known != null ? known.port : node.getPeerConfig().getPort(id);
+			if (port == -1) return;
+			delta = new Delta(id, port, known != null ? known.incarnation : 0, false);
+			if (!apply(delta)) return;
+		}
+		enact(List.of(delta));
+	}
+
+	/**
+	 * Tells a member this node knows as departed that it is, so it can refute the departure
+	 * if it is in fact alive. At most once per gossip interval for each member.
+	 * @param id a departed member, e.g. one just evicted
+	 */
+	public void tellDeparted(int id) {
+		Member known;
+		synchronized (this) {
+			known = members.get(id);
+			if (known == null || known.alive || !notice(id)) return;
+		}
+		node.getMessenger().sendMessage(known.port, new Message(Message.Type.GOSSIP, node.getId(), -1, "",
+				"-" + id + ":" + known.port + ":" + known.incarnation));
+	}
+
+	/**
+	 * Handles a message from a node missing from the peer config. A departed member is told
+	 * it departed, see {@link #tellDeparted(int)}; a live one, dropped after a failed probe,
+	 * is added and checked again. At most once per gossip interval for each member.
+	 */
+	public void heardFromNonMember(int id) {
+		Member known;
+		synchronized (this) {
+			known = members.get(id);
+			if (known == null || (known.alive && !notice(id))) return;
+		}
+		if (known.alive) {
+			admit(id, known.port);
+		}
+		else {
+			tellDeparted(id);
+		}
+	}
+
+	/**
+	 * @return false if the member was already told or re-checked within the last gossip interval
+	 */
+	private boolean notice(int id) {
+		long now = System.currentTimeMillis();
+		Long last = noticed.get(id);
+		if (last != null && now - last < GOSSIP_INTERVAL) return false;
+		noticed.put(id, now);
+		return true;
+	}
+
+	/**
+	 * @param incarnation incarnation a message about the member refers to, 0 if unknown
+	 * @return true if the member is known to have restarted since that incarnation
+	 */
+	public synchronized boolean isStale(int id, long incarnation) {
+		Member known = members.get(id);
+		return incarnation != 0 && known != null && known.incarnation > incarnation;
+	}
+
+	/**
+	 * @return number of membership changes this node has applied, including those of adopted snapshots
+	 */
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return every live member including this node, as {@code id:port:incarnation} entries, comma separated
+	 */
+	public synchronized String snapshot() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<Integer, Member> e : members.entrySet()) {
+			Member m = e.getValue();
+			if (!m.alive) continue;
+			if (sb.length() > 0) sb.append(',');
+			sb.append(e.getKey()).append(':').append(m.port).append(':').append(m.incarnation);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Replaces this node's view of the membership with a snapshot from another node
+	 * @param snapshotVersion the sender's membership version
+	 * @param snapshot entries as produced by {@link #snapshot()}
+	 * @return false if a snapshot at least as recent was adopted before, so this one was ignored
+	 */
+	public synchronized boolean adoptSnapshot(long snapshotVersion, String snapshot) {
+		if (snapshotVersion <= this.snapshotVersion) return false;
+		Map<Integer, Integer> peers = new HashMap<>();
+		Map<Integer, Member> adopted = new HashMap<>();
+		for (String entry : snapshot.split(",")) {
+			if (entry.isEmpty()) continue;
+			String[] parts = entry.split(":");
+			int id = Integer.parseInt(parts[0]);
+			int port = Integer.parseInt(parts[1]);
+			peers.put(id, port);
+			adopted.put(id, new Member(port, Long.parseLong(parts[2]), true));
+		}
+		peers.put(node.getId(), node.getPort());
+		adopted.put(node.getId(), new Member(node.getPort(), incarnation, true));
+		// Departed entries are kept, so stale gossip cannot revive them
+		members.entrySet().removeIf(e -> e.getValue().alive);
+		members.putAll(adopted);
+		node.getPeerConfig().replacePeers(peers);
+		this.snapshotVersion = snapshotVersion;
+		version = Math.max(version, snapshotVersion);
+		return true;
+	}
+
+	/**
+	 * Piggy-backs pending deltas on an outgoing message. Costs nothing while membership is stable.
+	 * @return the message itself, or a copy carrying the deltas
+	 */
+	public Message piggyback(Message message) {
+		if (!hasPending || message.getGossip() != null) return message;
+		String deltas = takeDeltas(false);
+		return deltas == null ? message : message.withGossip(deltas);
+	}
+
+	/**
+	 * Applies deltas received from another node; the ones that were news are passed on in turn
+	 * @param gossip deltas as produced by {@link #piggyback(Message)}
+	 */
+	public void merge(String gossip) {
+		List<Delta> news = new ArrayList<>();
+		synchronized (this) {
+			for (String entry : gossip.split(",")) {
+				if (entry.isEmpty()) continue;
+				try {
+					String[] parts = entry.substring(1).split(":");
+					Delta delta = new Delta(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]),
+							Long.parseLong(parts[2]), entry.charAt(0) == '+');
+					if (delta.id != node.getId()) {
+						if (apply(delta)) news.add(delta);
+					}
+					else if (!delta.alive) {
+						refute(delta.incarnation);
+					}
+				}
+				catch (RuntimeException e) {
+					logger.warning("Node " + node.getId() + " ignoring malformed gossip entry: " + entry);
+				}
+			}
+		}
+		enact(news);
+	}
+
+	/**
+	 * Stops this node's gossip rounds for good.
+	 */
+	public void close() {
+		leaving = true;
+		rounds.cancel(false);
+	}
+
+	/**
+	 * Answers news of this node's own departure, unless it is leaving: a newer incarnation
+	 * announced alive overrides the departure on every node that hears it
+	 * @param departed incarnation the departure is about, 0 if the sender did not know it
+	 */
+	private void refute(long departed) {
+		if (leaving || (departed != 0 && departed < incarnation)) return;	// an earlier run of this node
+		incarnation = Math.max(incarnation, departed) + 1;
+		logger.warning("Node " + node.getId() + " was declared departed while alive, refuting with incarnation " + incarnation);
+		members.put(node.getId(), new Member(node.getPort(), incarnation, true));
+		version++;
+		Delta delta = new Delta(node.getId(), node.getPort(), incarnation, true);
+		delta.remaining = RETRANSMIT_MULTIPLIER * log2(node.getPeerConfig().snapshot().size() + 1);
+		pending.remove(delta.id);
+		pending.put(delta.id, delta);
+		hasPending = true;
+	}
+
+	/**
+	 * Updates the local view if the delta is news and queues it for dissemination.
+	 * Caller holds this object's monitor, and passes news on to {@link #enact(List)} after releasing it.
+	 * @return true if the delta was news
+	 */
+	private boolean apply(Delta delta) {
+		Member known = members.get(delta.id);
+		boolean news = known == null
+				|| delta.incarnation > known.incarnation
+				|| (delta.incarnation == known.incarnation && known.alive && !delta.alive);
+		if (!news) {
+			// Hearing our own news back means it is already widespread; lose interest sooner
+			Delta mine = pending.get(delta.id);
+			if (mine != null && mine.incarnation == delta.incarnation && mine.alive == delta.alive
+					&& --mine.remaining <= 0) {
+				pending.remove(delta.id);
+				hasPending = !pending.isEmpty();
+			}
+			return false;
+		}
+
+		members.put(delta.id, new Member(delta.port, delta.incarnation, delta.alive));
+		version++;
+		delta.remaining = RETRANSMIT_MULTIPLIER * log2(node.getPeerConfig().snapshot().size() + 1);
+		pending.remove(delta.id);
+		pending.put(delta.id, delta);
+		hasPending = true;
+		return true;
+	}
+
+	/**
+	 * Brings the peer config in line with deltas that were news. Called without this object's
+	 * monitor; a delta overtaken meanwhile by a newer one about the same member is skipped.
+	 */
+	private void enact(List<Delta> news) {
+		for (Delta delta : news) {
+			synchronized (this) {
+				Member known = members.get(delta.id);
+				if (known == null || known.incarnation != delta.incarnation || known.alive != delta.alive) continue;
+			}
+			if (delta.alive) {
+				logger.info("Node " + node.getId() + " learned that Node " + delta.id + " joined on port " + delta.port);
+				admit(delta.id, delta.port);
+			}
+			else if (node.getPeerConfig().contains(delta.id)) {
+				logger.info("Node " + node.getId() + " learned that Node " + delta.id + " is gone");
+				node.getShutdownManager().removePeer(delta.id);
+			}
+		}
+	}
+
+	/**
+	 * Adds a live member to the peer config; a new one is probed in the background and
+	 * dropped again if unreachable, so applying gossip never waits on a connect.
+	 * Called without this object's monitor.
+	 */
+	private void admit(int id, int port) {
+		if (node.getPeerConfig().getPort(id) == port) return;
+		node.getPeerConfig().addPeer(id, port);
+		node.getMembershipManager().verifyPeer(id, port);
+	}
+
+	/**
+	 * @param round true for a gossip round, which counts as one transmission of each delta;
+	 *              piggy-backing is free, as its targets are not random
+	 * @return up to {@link #MAX_PIGGYBACK} pending deltas, or null if none are pending
+	 */
+	private synchronized String takeDeltas(boolean round) {
+		StringBuilder sb = new StringBuilder();
+		int taken = 0;
+		Iterator<Delta> it = pending.values().iterator();
+		while (it.hasNext() && taken < MAX_PIGGYBACK) {
+			Delta d = it.next();
+			if (sb.length() > 0) sb.append(',');
+			sb.append(d.alive ? '+' : '-').append(d.id).append(':').append(d.port).append(':').append(d.incarnation);
+			taken++;
+			if (round && --d.remaining <= 0) {
+				it.remove();
+			}
+		}
+		hasPending = !pending.isEmpty();
+		return taken == 0 ? null : sb.toString();
+	}
+
+	/**
+	 * Sends pending deltas to a few random peers, so changes spread without other traffic
+	 */
+	private void gossipRound() {
+		if (!hasPending) return;
+		List<Integer> peers = new ArrayList<>(node.getPeerConfig().getPeerIds());
+		peers.remove(Integer.valueOf(node.getId()));
+		if (peers.isEmpty()) return;
+		String deltas = takeDeltas(true);
+		if (deltas == null) return;
+		Collections.shuffle(peers, ThreadLocalRandom.current());
+		List<Integer> targets = peers.subList(0, Math.min(FANOUT, peers.size()));
+		node.getBroadcaster().multicast(new Message(Message.Type.GOSSIP, node.getId(), -1, "", deltas), targets);
+	}
+
+	private static int log2(int n) {
+		return 32 - Integer.numberOfLeadingZeros(Math.max(1, n - 1));
+	}
+
+	private static class Member {
+		private final int port;
+		private final long incarnation;
+		private final boolean alive;
+
+		Member(int port, long incarnation, boolean alive) {
+			this.port = port;
+			this.incarnation = incarnation;
+			this.alive = alive;
+		}
+	}
+
+	private static class Delta {
+		private final int id;
+		private final int port;
+		private final long incarnation;
+		private final boolean alive;
+		private int remaining;		// transmissions left
+
+		Delta(int id, int port, long incarnation, boolean alive) {
+			this.id = id;
+			this.port = port;
+			this.incarnation = incarnation;
+			this.alive = alive;
+		}
+	}
+}
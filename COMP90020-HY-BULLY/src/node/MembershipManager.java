@@ -1,16 +1,17 @@
 package node;
 
-import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 public class MembershipManager {
     private final Node node;
+    private static final int PROBE_TIMEOUT = 500;  // ms
     private volatile boolean joinAck = false;
+    // Peers added by gossip whose reachability probe is still running, id -> port
+    private final ConcurrentHashMap<Integer, Integer> provisional = new ConcurrentHashMap<>();
     private static final Logger logger = Logger.getLogger(MembershipManager.class.getName());
     
     public MembershipManager(Node node) {
@@ -26,11 +27,15 @@ public class MembershipManager {
     	
         List<Integer> seeds = new ArrayList<>(node.getPeerConfig().getPeerIds());
         seeds.remove(Integer.valueOf(node.getId()));
+        
+        // Hold back live chats until the seed has sent the chat history
+        node.getChatManager().beginCatchUp();
 
         for (int seedId : seeds) {
             if (joinAck) break;
 
             int seedPort = node.getPeerConfig().getPort(seedId);
+            if (seedPort == -1) continue;
             logger.info("Node " + node.getId() + " sending JOIN to seed Node " 
                     + seedId + " on port " + seedPort);
             sendJoinRequest(seedPort);
@@ -54,91 +59,93 @@ public class MembershipManager {
         Message join = new Message(
                 Message.Type.JOIN,
                 node.getId(), -1,
-                String.valueOf(node.getPort())
+                node.getPort() + ":" + node.getMembershipGossip().getIncarnation()
         );
         node.getMessenger().sendMessage(bootstrapPort, join);
     }
 
+    /**
+     * Admits a joining node. The rest of the cluster learns about it by gossip; the joiner
+     * gets one MEMBERSHIP_SNAPSHOT with every peer and the leader, then the chat history.
+     */
     public void handleJoin(Message msg) {
         int newId   = msg.getSenderId();
-        int newPort = Integer.parseInt(msg.getContent());
+        String[] content = msg.getContent().split(":");
+        int newPort = Integer.parseInt(content[0]);
+        // Joiners that do not send their incarnation count as started now
+        long incarnation = content.length > 1 ? Long.parseLong(content[1]) : System.currentTimeMillis();
         
         logger.info("Node " + node.getId() + " handling JOIN request from Node " + newId);
-        node.getPeerConfig().addPeer(newId, newPort);
-
-        Message newNode = new Message(
-                Message.Type.NEW_NODE, newId, -1,
-                String.valueOf(newPort)
-        );
-        
-        logger.fine("Node " + node.getId() + " notifying all peers about new Node " + newId);
-        for (int peer : node.getPeerConfig().getPeerIds()) {
-            node.getMessenger().sendMessage(node.getPeerConfig().getPort(peer), newNode);
-        }
+        MembershipGossip gossip = node.getMembershipGossip();
+        gossip.joined(newId, newPort, incarnation);
         
-        // Inform new node about current leader
+        // Inform new node about current leader and all existing peers at once; also acknowledges the join
         int leaderId = node.getCurrentLeader();
         if (leaderId != -1) {
         	logger.info("Node " + node.getId() + " informing new Node " + newId
                     + " that current leader is Node " + leaderId);
-            Message coord = new Message(
-                    Message.Type.COORDINATOR,
-                    leaderId,
-                    -1,
-                    ""
-            );
-            node.getMessenger().sendMessage(newPort, coord);
         }
         else{
         	logger.info("Node " + node.getId() + " informing new Node " + newId
                     + " that there is no current leader");
         }
-        // Inform new node about all existing peers
-        for (int peerId : node.getPeerConfig().getPeerIds()) {
-            if (peerId == newId) continue;
-
-            int peerPort = node.getPeerConfig().getPort(peerId);
-            Message notify = new Message(
-                    Message.Type.NEW_NODE,
-                    peerId,
-                    -1,
-                    String.valueOf(peerPort)
-            );
-            node.getMessenger().sendMessage(newPort, notify);
-            logger.fine("Node " + node.getId() + " informed new Node " + newId
-                    + " about existing peer Node " + peerId);
-        }
+        Message snapshot = new Message(
+                Message.Type.MEMBERSHIP_SNAPSHOT,
+                node.getId(),
+                -1,
+                gossip.getVersion() + ";" + leaderId + ";" + gossip.snapshot(),
+                node.getElectionManager().getLeaderTerm()
+        );
+        node.getMessenger().sendMessage(newPort, snapshot);
+        
+        // Stream recent chat history to the new node
+        node.getChatManager().sendCatchUp(newId, newPort);
 
     }
 
-    public void handleNewNode(Message msg) {
-        int newId   = msg.getSenderId();
-        int newPort = Integer.parseInt(msg.getContent());
-
-        if (newId != node.getId()) {
-        	// Message about another node
-            if (!isReachable("localhost", newPort, 500)) {
-                logger.warning("Node " + node.getId() + " skipping NEW_NODE for unreachable peer "
-                        + newId + " on port " + newPort);
-                return;
-            }
-            logger.info("Node " + node.getId() + " adding new peer: Node " + newId);
-            node.getPeerConfig().addPeer(newId, newPort);
-        } else {
-        	joinAck = true;
-            logger.info("Node " + node.getId() + " join request acknowledged by cluster");
-        }
-    }
-    
-    private boolean isReachable(String host, int port, int timeoutMillis) {
-        try (Socket sock = new Socket()) {
-            sock.connect(new InetSocketAddress(host, port), timeoutMillis);
-            return true;
+    /**
+     * Joiner: adopts the membership and leader sent by the seed in answer to JOIN
+     */
+    public void handleSnapshot(Message msg) {
+        String[] parts = msg.getContent().split(";", 3);
+        long version = Long.parseLong(parts[0]);
+        int leaderId = Integer.parseInt(parts[1]);
+        if (!node.getMembershipGossip().adoptSnapshot(version, parts[2])) {
+        	logger.fine("Node " + node.getId() + " ignoring outdated membership snapshot from Node " + msg.getSenderId());
+        	return;
         }
-        catch (IOException e) {
-        	logger.fine("Failed to connect to " + host + ":" + port);
-            return false;
+        logger.info("Node " + node.getId() + " adopted membership of " + node.getPeerConfig().getPeerIds().size()
+        		+ " nodes from Node " + msg.getSenderId());
+        if (leaderId != -1) {
+        	node.getElectionManager().observeLeader(leaderId, msg.getEpoch());
         }
+        joinAck = true;
+        logger.info("Node " + node.getId() + " join request acknowledged by cluster");
+    }
+
+    /**
+     * Checks a peer that gossip has just added, without waiting on the probe:
+     * the peer stays in the config meanwhile and is dropped again if it is unreachable
+     */
+    public void verifyPeer(int id, int port) {
+    	provisional.put(id, port);
+    	node.getMessenger().getTransport().probe(port, PROBE_TIMEOUT)
+    			.thenAccept(reachable -> probed(id, port, reachable));
+    }
+
+    /**
+     * Confirms or rejects a provisionally added peer once its probe has finished
+     */
+    private void probed(int id, int port, boolean reachable) {
+    	if (!provisional.remove(id, port)) return;		// superseded by a newer probe
+    	if (reachable) {
+    		logger.info("Node " + node.getId() + " confirmed new peer: Node " + id);
+    	}
+    	else if (node.getPeerConfig().removePeer(id, port)) {
+            logger.warning("Node " + node.getId() + " dropping unreachable peer "
+                    + id + " on port " + port);
+            node.getMessenger().closePeer(port);
+    	}
     }
 }
 
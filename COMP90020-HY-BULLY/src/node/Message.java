@@ -6,18 +6,60 @@ import org.json.JSONObject;
  * Message protocol class
  */
 public class Message {
-	public enum Type {ELECTION, OK, COORDINATOR, CHAT, HEARTBEAT, QUIT, JOIN, NEW_NODE, PEER_DOWN}
+	// New types must be appended: the binary codec sends the ordinal. NEW_NODE is no longer sent, joins spread by GOSSIP
+	public enum Type {ELECTION, OK, COORDINATOR, CHAT, HEARTBEAT, QUIT, JOIN, NEW_NODE, PEER_DOWN, CHAT_BATCH, NACK, CATCH_UP, HEARTBEAT_ACK, GOSSIP, MEMBERSHIP_SNAPSHOT, GRANT, HANDOFF, SYNC}
 	
 	private Type type;				// Election or chat
 	private int senderId;			
-	private int seq;				// Sequence number (for chat ordering - unimplemented)
+	private int seq;				// Chat: total order stamped by the leader, -1 before that. COORDINATOR/HANDOFF: leader's next chat seq. SYNC: follower's next expected chat seq, or the leader's next one. CATCH_UP: 0 on the closing chunk
 	private String content;			// Empty for election messages
+	private String gossip;			// Membership deltas piggy-backed by MembershipGossip, null if none
+	private long epoch;				// ELECTION/OK/GRANT/COORDINATOR/HEARTBEAT/MEMBERSHIP_SNAPSHOT/HANDOFF: election term. QUIT/PEER_DOWN: incarnation of the departed node. 0 if unknown
+	private long outboxId;			// Chat: id the author's outbox gave it, 0 if none
+	private int pendingAhead;		// Unsequenced chat: the author's chats still ahead of it in the outbox
 
 	public Message(Type type, int senderId, int seq, String content) {
+		this(type, senderId, seq, content, null, 0);
+	}
+	
+	public Message(Type type, int senderId, int seq, String content, String gossip) {
+		this(type, senderId, seq, content, gossip, 0);
+	}
+	
+	public Message(Type type, int senderId, int seq, String content, long epoch) {
+		this(type, senderId, seq, content, null, epoch);
+	}
+	
+	/**
+	 * Creates a chat
+	 * @param outboxId id the author's outbox gave the chat, 0 if none
+	 * @param pendingAhead the author's chats still ahead of it in the outbox, 0 once sequenced
+	 */
+	public Message(Type type, int senderId, int seq, String content, long outboxId, int pendingAhead) {
+		this(type, senderId, seq, content, null, 0, outboxId, pendingAhead);
+	}
+	
+	public Message(Type type, int senderId, int seq, String content, String gossip, long epoch) {
+		this(type, senderId, seq, content, gossip, epoch, 0, 0);
+	}
+	
+	public Message(Type type, int senderId, int seq, String content, String gossip, long epoch,
+			long outboxId, int pendingAhead) {
 		this.type = type;
 		this.senderId = senderId;
 		this.seq = seq;
 		this.content = content;
+		this.gossip = gossip;
+		this.epoch = epoch;
+		this.outboxId = outboxId;
+		this.pendingAhead = pendingAhead;
+	}
+	
+	/**
+	 * @return a copy of this message carrying the given membership deltas
+	 */
+	public Message withGossip(String gossip) {
+		return new Message(type, senderId, seq, content, gossip, epoch, outboxId, pendingAhead);
 	}
 	
 	/**
@@ -30,6 +72,18 @@ public class Message {
         obj.put("senderId",  senderId);
         obj.put("seq",   seq);
         obj.put("content", content);
+        if (gossip != null) {
+        	obj.put("gossip", gossip);
+        }
+        if (epoch != 0) {
+        	obj.put("epoch", epoch);
+        }
+        if (outboxId != 0) {
+        	obj.put("outboxId", outboxId);
+        }
+        if (pendingAhead != 0) {
+        	obj.put("pendingAhead", pendingAhead);
+        }
         return obj.toString();
     }
     
@@ -44,7 +98,11 @@ public class Message {
         int sid = obj.getInt("senderId");
         int seq = obj.optInt("seq", -1);
         String content   = obj.optString("content", "");
-        return new Message(type, sid, seq, content);
+        String gossip = obj.has("gossip") ? obj.getString("gossip") : null;
+        long epoch = obj.optLong("epoch", 0);
+        long outboxId = obj.optLong("outboxId", 0);
+        int pendingAhead = obj.optInt("pendingAhead", 0);
+        return new Message(type, sid, seq, content, gossip, epoch, outboxId, pendingAhead);
     }
 
     // Getters
@@ -63,5 +121,21 @@ public class Message {
     public String getContent() {
     	return content;
     }
+    
+    public String getGossip() {
+    	return gossip;
+    }
+    
+    public long getEpoch() {
+    	return epoch;
+    }
+    
+    public long getOutboxId() {
+    	return outboxId;
+    }
+    
+    public int getPendingAhead() {
+    	return pendingAhead;
+    }
 
 }
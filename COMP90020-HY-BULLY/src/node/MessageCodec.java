@@ -0,0 +1,49 @@
+package node;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Wire format for messages. The sender picks a codec per connection and announces it
+ * with the codec's preamble byte; the receiver selects the matching decoder from the
+ * first byte it reads on the connection and echoes the preamble to confirm it.
+ * Senders fall back to JSON for peers that never confirm.
+ */
+public interface MessageCodec {
+
+	/** Newline-delimited JSON, the original format. Has no preamble, so it stays readable by older nodes. */
+	MessageCodec JSON = new JsonCodec();
+
+	/** Compact length-prefixed binary format. */
+	MessageCodec BINARY = new BinaryCodec();
+
+	/** Largest frame body, in bytes, a receiver accepts. Senders refuse longer messages instead of sending them. */
+	int MAX_FRAME_LENGTH = 32 * 1024;
+
+	/**
+	 * @return byte written once at the start of each connection to announce this codec, or -1 for none
+	 */
+	int preamble();
+
+	/**
+	 * Encodes a message as a complete frame, including any delimiter or length prefix
+	 * @param message message to encode
+	 * @return bytes to write to the connection
+	 */
+	byte[] encode(Message message);
+
+	/**
+	 * Strips the delimiter or length prefix from a complete frame produced by {@link #encode(Message)},
+	 * for transports that deliver whole frames rather than a byte stream
+	 * @param frame complete frame
+	 * @return view of the frame's body, ready for {@link #decode(ByteBuffer)}
+	 */
+	ByteBuffer unframe(byte[] frame);
+
+	/**
+	 * Decodes a single frame whose delimiter or length prefix has already been stripped
+	 * @param frame the frame's bytes between position and limit; the position is advanced
+	 * @return decoded message
+	 * @throws IllegalArgumentException if the frame is malformed
+	 */
+	Message decode(ByteBuffer frame);
+}
@@ -1,12 +1,13 @@
 package node;
 
+import java.nio.ByteBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.json.JSONException;
 
 /**
- * Parses incoming JSON strings into Message objects and delegates
+ * Decodes incoming frames into Message objects and delegates
  * to the appropriate manager based on message type.
  */
 public class MessageHandler {
@@ -18,12 +19,14 @@ public class MessageHandler {
 	}
 	
 	/**
-     * Entry point for raw JSON message strings from sockets.
+     * Entry point for raw JSON message strings.
      */
 	public void handleMessage(String rawJson) {
 		if (rawJson == null) return;
 		
-		logger.fine("Node " + node.getId() + " received: " + rawJson);
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine("Node " + node.getId() + " received: " + rawJson);
+		}
 		
 		Message msg;
 		try {
@@ -33,47 +36,143 @@ public class MessageHandler {
 			logger.log(Level.WARNING, "Invalid JSON message: " + rawJson, e);
             return;
 		}
-		
+		handleMessage(msg);
+	}
+	
+	/**
+	 * Entry point for a single frame read from a connection. HEARTBEATs and their acks in binary
+	 * frames are dispatched straight from the buffer without decoding a Message.
+	 * @param codec codec the sender announced for the connection
+	 * @param frame the frame between position and limit, without delimiter or length prefix;
+	 *              only valid for the duration of the call
+	 */
+	public void handleFrame(MessageCodec codec, ByteBuffer frame) {
+		Message msg;
+		try {
+			if (codec == MessageCodec.BINARY && BinaryCodec.typeOf(frame) == Message.Type.HEARTBEAT) {
+				if (logger.isLoggable(Level.FINE)) {
+					logger.fine("Node " + node.getId() + " handling HEARTBEAT message");
+				}
+				node.getHeartbeatManager().receivedHeartbeat(BinaryCodec.senderIdOf(frame), BinaryCodec.seqOf(frame),
+						BinaryCodec.epochOf(frame));
+				String gossip = BinaryCodec.gossipOf(frame);
+				if (gossip != null) {
+					node.getMembershipGossip().merge(gossip);
+				}
+				return;
+			}
+			if (codec == MessageCodec.BINARY && BinaryCodec.typeOf(frame) == Message.Type.HEARTBEAT_ACK) {
+				node.getHeartbeatManager().receivedAck(BinaryCodec.senderIdOf(frame));
+				return;
+			}
+			msg = codec.decode(frame);
+		}
+		catch (IllegalArgumentException e) {
+			logger.log(Level.WARNING, "Invalid message frame", e);
+			return;
+		}
+		handleMessage(msg);
+	}
+	
+	/**
+	 * Delegates a decoded message to the manager responsible for its type.
+	 */
+	public void handleMessage(Message msg) {
+		boolean fine = logger.isLoggable(Level.FINE);
+		if (msg.getGossip() != null) {
+			node.getMembershipGossip().merge(msg.getGossip());
+		}
+		if (msg.getSenderId() != node.getId() && !node.getPeerConfig().contains(msg.getSenderId())) {
+			node.getMembershipGossip().heardFromNonMember(msg.getSenderId());
+		}
+		if (isFromLeader(msg)) {
+			// Any traffic from the leader proves it is alive, not just HEARTBEATs
+			node.getHeartbeatManager().leaderActivity(node.getCurrentLeader());
+		}
+		else if (node.isLeader() && isFromFollower(msg)) {
+			// Likewise a follower writing to the leader needs no ack to prove it is alive
+			node.getHeartbeatManager().peerActivity(msg.getSenderId());
+		}
 		switch (msg.getType()) {
         	case ELECTION:
-        		logger.fine("Node " + node.getId() + " handling ELECTION message from Node " + msg.getSenderId());
-        		node.getElectionManager().handleElectionMessage(msg.getSenderId());
+        		if (fine) logger.fine("Node " + node.getId() + " handling ELECTION message from Node " + msg.getSenderId());
+        		node.getElectionManager().handleElectionMessage(msg.getSenderId(), msg.getEpoch());
         		break;
             
         	case OK:
-        		logger.fine("Node " + node.getId() + " handling OK message");
-        		node.getElectionManager().handleOkMessage();
+        		if (fine) logger.fine("Node " + node.getId() + " handling OK message");
+        		node.getElectionManager().handleOkMessage(msg.getSenderId(), msg.getEpoch());
         		break;
             
         	case COORDINATOR:
-        		logger.fine("Node " + node.getId() + " handling COORDINATOR message from Node " + msg.getSenderId());
-        		node.getElectionManager().handleCoordinatorMessage(msg.getSenderId());
+        		if (fine) logger.fine("Node " + node.getId() + " handling COORDINATOR message from Node " + msg.getSenderId());
+        		node.getElectionManager().handleCoordinatorMessage(msg.getSenderId(), msg.getSeq(), msg.getEpoch(),
+        				ElectionManager.HANDOFF.equals(msg.getContent()));
+        		break;
+            
+        	case GRANT:
+        		if (fine) logger.fine("Node " + node.getId() + " handling GRANT message from Node " + msg.getSenderId());
+        		node.getElectionManager().handleGrantMessage(msg.getSenderId(), msg.getEpoch());
+        		break;
+            
+        	case HANDOFF:
+        		if (fine) logger.fine("Node " + node.getId() + " handling HANDOFF message from Node " + msg.getSenderId());
+        		node.getElectionManager().handleHandoffMessage(msg);
         		break;
             
         	case CHAT:
-        		logger.fine("Node " + node.getId() + " handling CHAT message from Node " + msg.getSenderId());
+        		if (fine) logger.fine("Node " + node.getId() + " handling CHAT message from Node " + msg.getSenderId());
         		node.getChatManager().handleIncomingChat(msg);
         		break;
             
+        	case CHAT_BATCH:
+        		if (fine) logger.fine("Node " + node.getId() + " handling CHAT_BATCH message from Node " + msg.getSenderId());
+        		node.getChatManager().handleIncomingBatch(msg);
+        		break;
+            
+        	case NACK:
+        		if (fine) logger.fine("Node " + node.getId() + " handling NACK message from Node " + msg.getSenderId());
+        		node.getChatManager().handleNack(msg);
+        		break;
+            
+        	case CATCH_UP:
+        		if (fine) logger.fine("Node " + node.getId() + " handling CATCH_UP message from Node " + msg.getSenderId());
+        		node.getChatManager().handleCatchUp(msg);
+        		break;
+            
+        	case SYNC:
+        		if (fine) logger.fine("Node " + node.getId() + " handling SYNC message from Node " + msg.getSenderId());
+        		node.getChatManager().handleSync(msg);
+        		break;
+            
         	case HEARTBEAT:
-        		logger.fine("Node " + node.getId() + " handling HEARTBEAT message");
-        		node.getHeartbeatManager().receivedHeartbeat(msg);
+        		if (fine) logger.fine("Node " + node.getId() + " handling HEARTBEAT message");
+        		node.getHeartbeatManager().receivedHeartbeat(msg.getSenderId(), msg.getSeq(), msg.getEpoch());
+        		break;
+            
+        	case HEARTBEAT_ACK:
+        		node.getHeartbeatManager().receivedAck(msg.getSenderId());
+        		break;
+            
+        	case GOSSIP:
+        		// Carries nothing but the membership deltas merged above
+        		if (fine) logger.fine("Node " + node.getId() + " handling GOSSIP message from Node " + msg.getSenderId());
         		break;
             
         	case QUIT:
         	case PEER_DOWN:
-        		logger.fine("Node " + node.getId() + " handling " + msg.getType() + " message");
+        		if (fine) logger.fine("Node " + node.getId() + " handling " + msg.getType() + " message");
         		node.getShutdownManager().handlePeerDown(msg);
         		break;
             
         	case JOIN:
-        		logger.fine("Node " + node.getId() + " handling JOIN message from Node " + msg.getSenderId());
+        		if (fine) logger.fine("Node " + node.getId() + " handling JOIN message from Node " + msg.getSenderId());
         		node.getMembershipManager().handleJoin(msg);
         		break;
             
-        	case NEW_NODE:
-        		logger.fine("Node " + node.getId() + " handling NEW_NODE message");
-        		node.getMembershipManager().handleNewNode(msg);
+        	case MEMBERSHIP_SNAPSHOT:
+        		if (fine) logger.fine("Node " + node.getId() + " handling MEMBERSHIP_SNAPSHOT message from Node " + msg.getSenderId());
+        		node.getMembershipManager().handleSnapshot(msg);
         		break;
             
         	default:
@@ -81,4 +180,33 @@ public class MessageHandler {
 		}
 	}
 	
+	/**
+	 * @return true if the message can only have been sent by the current leader
+	 */
+	private boolean isFromLeader(Message msg) {
+		switch (msg.getType()) {
+			case CHAT:
+				// senderId is the author; only the leader stamps sequence numbers
+				return msg.getSeq() >= 0 && !node.isLeader();
+			case PEER_DOWN:
+				return false;	// senderId names the node the message is about
+			default:
+				return msg.getSenderId() == node.getCurrentLeader() && !node.isLeader();
+		}
+	}
+	
+	/**
+	 * @return true if the message was sent by the follower named as its sender
+	 */
+	private boolean isFromFollower(Message msg) {
+		switch (msg.getType()) {
+			case CHAT:
+				return msg.getSeq() < 0;	// forwarded to the leader for sequencing
+			case NACK:
+				return true;
+			default:
+				return false;
+		}
+	}
+	
 }
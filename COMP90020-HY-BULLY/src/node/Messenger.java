@@ -1,8 +1,12 @@
 package node;
 
-import java.io.*;
-import java.net.*;
-
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -14,51 +18,186 @@ import java.util.logging.Logger;
 public class Messenger {
     private static final Logger logger = Logger.getLogger(Messenger.class.getName());
     private final Consumer<Message> chatDisplayFunction;
+    private final MessageCodec codec;
+    private final Transport transport;
+    private final ConcurrentHashMap<Integer, OutboundQueue> outbound = new ConcurrentHashMap<>();
+    private final OutboundQueue.OverflowPolicy overflowPolicy;
+    private final LongAdder messagesSent = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
     private Node node;
     
     public Messenger(Consumer<Message> chatDisplayFunction) { 
+    	// Drops chats to a stalled peer rather than block the caller; control messages wait for room
+    	this(chatDisplayFunction, OutboundQueue.OverflowPolicy.DROP_OLDEST, MessageCodec.BINARY);
+    }
+    
+    public Messenger(Consumer<Message> chatDisplayFunction, OutboundQueue.OverflowPolicy overflowPolicy,
+    		MessageCodec codec) { 
+    	this(chatDisplayFunction, overflowPolicy, new TcpTransport(codec));
+    }
+    
+    /**
+     * @param transport how frames reach peers, e.g. {@link LocalTransport} for nodes in one JVM
+     */
+    public Messenger(Consumer<Message> chatDisplayFunction, OutboundQueue.OverflowPolicy overflowPolicy,
+    		Transport transport) { 
     	this.chatDisplayFunction = chatDisplayFunction;
+    	this.overflowPolicy = overflowPolicy;
+    	this.transport = transport;
+    	this.codec = transport.getCodec();
     }
     
     /**
-     * Sends a single message to the target port with TCP and closes connection
+     * Queues an already encoded control message, which the overflow policy never drops
+     * @see #sendFrame(int, byte[], boolean)
+     */
+    public CompletableFuture<Void> sendFrame(int targetPort, byte[] frame) {
+    	return sendFrame(targetPort, frame, false);
+    }
+    
+    /**
+     * Queues an already encoded message for the target port. Messages to the same port are
+     * written in the order they were sent, over the transport's connection to the peer.
      * @param targetPort message destination
-     * @param message - message to be sent
+     * @param frame message encoded with {@link #getCodec()}
+     * @param droppable true if the overflow policy may drop it, see {@link #droppable(Message.Type)}
+     * @return completes when the message has been written, exceptionally if it failed or was dropped,
+     *         or if it is longer than {@link MessageCodec#MAX_FRAME_LENGTH} and would be refused by the peer
      */
-    public void sendMessage(int targetPort, String message) {
-        try (Socket socket = new Socket("localhost", targetPort);
-             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()))) {
-             
-            writer.write(message);
-            writer.newLine();
-            writer.flush();
-            
-            logger.fine("Sent message to port " + targetPort);
-        } 
-        catch (IOException e) {
-        	logger.log(Level.WARNING, "Failed to send message to port " + targetPort, e);
-        	// If leader failed to send message to a node, it will tell other nodes that that node is down (remove it)
-        	// If leader itself failed and a node tries to message the leader, nothing will happen
-        	// That will be handled by manual or automatic election 
-        	if (node.isLeader()) {
-        		Integer downId = node.getPeerConfig().getIdByPort(targetPort);
-        		if (downId != null) {
-        			node.getPeerConfig().removePeerByPort(targetPort);
-        			Message down = new Message(Message.Type.PEER_DOWN, downId, -1, "");
-        			peerBroadcast(down);
-        			logger.info("Removing peer " + downId + " from application");
-        		}
-        	}
-        }
+    public CompletableFuture<Void> sendFrame(int targetPort, byte[] frame, boolean droppable) {
+    	if (frame.length > MessageCodec.MAX_FRAME_LENGTH) {
+    		logger.warning("Not sending " + frame.length + " byte message to port " + targetPort
+    				+ ", over the " + MessageCodec.MAX_FRAME_LENGTH + " byte frame limit");
+    		return CompletableFuture.failedFuture(new IOException("Message of " + frame.length + " bytes exceeds the frame limit"));
+    	}
+    	OutboundQueue queue = outbound.computeIfAbsent(targetPort,
+    			port -> new OutboundQueue(port, transport, overflowPolicy, this::onSendFailure));
+    	messagesSent.increment();
+    	bytesSent.add(frame.length);
+    	return queue.enqueue(frame, droppable);
+    }
+    
+    /**
+     * @return true for chats, which a full outbound queue may drop: followers NACK a lost
+     *         chat and authors replay theirs. Election, heartbeat and membership messages are kept.
+     */
+    public static boolean droppable(Message.Type type) {
+    	return type == Message.Type.CHAT || type == Message.Type.CHAT_BATCH;
+    }
+    
+    /**
+     * Called on the peer's writer thread when a message could not be delivered, or on the
+     * sender's thread if a {@link OutboundQueue.OverflowPolicy#BLOCK} queue stayed full
+     * @param targetPort destination of the failed message
+     * @param e cause
+     */
+    private void onSendFailure(int targetPort, IOException e) {
+    	logger.log(Level.WARNING, "Failed to send message to port " + targetPort, e);
+    	// The leader counts a failed send against the peer's health; the heartbeat manager
+    	// evicts it once it also stops acking. Without heartbeats there are no acks to wait
+    	// for, so the peer is removed and the others told straight away.
+    	// If leader itself failed and a node tries to message the leader, nothing will happen
+    	// That will be handled by manual or automatic election 
+    	if (node.isLeader()) {
+    		int downId = node.getPeerConfig().getIdByPort(targetPort);
+    		if (downId == -1) return;
+    		if (node.getHeartbeatManager().isEnabled()) {
+    			node.getHeartbeatManager().sendFailed(downId);
+    		}
+    		else {
+    			node.getShutdownManager().evictPeer(downId);
+    		}
+    	}
+    }
+    
+    /**
+     * Drops everything still queued for a peer and closes its connection
+     * @param targetPort port of the departed peer
+     */
+    public void closePeer(int targetPort) {
+    	OutboundQueue queue = outbound.remove(targetPort);
+    	if (queue != null) {
+    		queue.close();
+    	}
+    	transport.disconnect(targetPort);
+    }
+    
+    /**
+     * Drops everything still queued and closes the transport, e.g. when the node stops
+     */
+    public void close() {
+    	for (Integer port : outbound.keySet()) {
+    		closePeer(port);
+    	}
+    	transport.close();
     }
     
     /**
-     * Message send function overload
+     * @return when a message was last written to the port, in ms, or 0 if never
+     */
+    public long lastSentTo(int targetPort) {
+    	OutboundQueue queue = outbound.get(targetPort);
+    	return queue == null ? 0 : queue.lastWritten();
+    }
+    
+    /**
+     * Waits until every message queued so far has been written or has failed
+     * @param timeoutMillis upper bound on the wait
+     */
+    public void flush(long timeoutMillis) {
+    	CompletableFuture<?>[] pending = outbound.values().stream()
+    			.map(OutboundQueue::lastEnqueued)
+    			.toArray(CompletableFuture[]::new);
+    	try {
+    		CompletableFuture.allOf(pending).get(timeoutMillis, TimeUnit.MILLISECONDS);
+    	}
+    	catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    	}
+    	catch (ExecutionException | TimeoutException e) {
+    		logger.fine("Outbound flush incomplete: " + e);
+    	}
+    }
+    
+    /**
+     * Queues a single message for the target port, with any pending membership gossip
      * @param targetPort
      * @param message
+     * @return completes when the message has been written
+     */
+    public CompletableFuture<Void> sendMessage(int targetPort, Message message) {
+    	if (node != null) {
+    		message = node.getMembershipGossip().piggyback(message);
+    	}
+    	return sendFrame(targetPort, codec.encode(message), droppable(message.getType()));
+    }
+    
+    /**
+     * @return transport frames are sent and received through
      */
-    public void sendMessage(int targetPort, Message message) {
-    	sendMessage(targetPort, message.toJson());
+    public Transport getTransport() {
+    	return transport;
+    }
+    
+    /**
+     * @return codec used for every outbound connection of this node
+     */
+    public MessageCodec getCodec() {
+    	return codec;
+    }
+    
+    /**
+     * @return number of messages queued for sending so far
+     */
+    public long getMessagesSent() {
+    	return messagesSent.sum();
+    }
+    
+    /**
+     * @return encoded bytes queued for sending so far, excluding connection preambles
+     */
+    public long getBytesSent() {
+    	return bytesSent.sum();
     }
     
     /**
@@ -75,20 +214,6 @@ public class Messenger {
         }
     }
     
-    /**
-     * Broadcast message to other nodes - only for removing unreachable peers
-     * @param m message
-     */
-    private void peerBroadcast(Message m) {
-    	logger.info("MESSENGER: broadcast removing peer");
-    	for (int id : node.getPeerConfig().getPeerIds()) {
-    		// Skip myself
-    		if (id == node.getId()) continue;
-    		int port = node.getPeerConfig().getPort(id);
-    		sendMessage(port, m);
-    	}
-    }
-    
     public void setNode(Node node) {
     	this.node = node;
     }
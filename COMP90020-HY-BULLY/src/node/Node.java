@@ -1,8 +1,9 @@
 package node;
 
-import java.io.*;
-import java.net.*;
-import java.util.*;
+import java.io.IOException;
+import java.net.BindException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.logging.Logger;
 
 /**
@@ -26,10 +27,36 @@ public class Node {
     private Messenger messenger;
     private HeartbeatManager heartbeatManager;
     private MembershipManager membershipManager;
+    private final Broadcaster broadcaster;
     private final ShutdownManager shutdownManager;
+    private final MembershipGossip membershipGossip;
     private final boolean isBootstrap;
+    private final Path chatLogDir;
+    private final ChatStore.FsyncPolicy fsyncPolicy;
 
     public Node(int id, int port, boolean isBootstrap, PeerConfig peerConfig, Messenger messenger) {
+    	this(id, port, isBootstrap, peerConfig, messenger, ElectionManager.Algorithm.CLASSIC);
+    }
+    
+    /**
+     * @param algorithm how elections are run; every node of a cluster should use the same
+     */
+    public Node(int id, int port, boolean isBootstrap, PeerConfig peerConfig, Messenger messenger,
+    		ElectionManager.Algorithm algorithm) {
+    	this(id, port, isBootstrap, peerConfig, messenger, Paths.get("chatlog", "node-" + id), ChatStore.FsyncPolicy.PERIODIC, algorithm);
+    }
+    
+    /**
+     * @param chatLogDir directory of the durable chat log, or null to keep chat history in memory only
+     * @param fsyncPolicy when chat log appends are forced to disk
+     */
+    public Node(int id, int port, boolean isBootstrap, PeerConfig peerConfig, Messenger messenger,
+    		Path chatLogDir, ChatStore.FsyncPolicy fsyncPolicy) {
+    	this(id, port, isBootstrap, peerConfig, messenger, chatLogDir, fsyncPolicy, ElectionManager.Algorithm.CLASSIC);
+    }
+    
+    public Node(int id, int port, boolean isBootstrap, PeerConfig peerConfig, Messenger messenger,
+    		Path chatLogDir, ChatStore.FsyncPolicy fsyncPolicy, ElectionManager.Algorithm algorithm) {
     	logger.info("Creating Node " + id + " on port " + port + (isBootstrap ? " (bootstrap)" : ""));
     	
         this.id = id;
@@ -37,34 +64,29 @@ public class Node {
         this.peerConfig = peerConfig;
         this.messenger = messenger;
         this.isBootstrap   = isBootstrap;
+        this.chatLogDir = chatLogDir;
+        this.fsyncPolicy = fsyncPolicy;
         // Create managers
-        this.electionManager = new ElectionManager(this);
+        this.electionManager = new ElectionManager(this, algorithm);
         this.chatManager = new ChatManager(this);
         this.messageHandler = new MessageHandler(this);
         this.heartbeatManager = new HeartbeatManager(this);
         this.shutdownManager = new ShutdownManager(this);
         this.membershipManager = new MembershipManager(this);
+        this.membershipGossip = new MembershipGossip(this);
+        this.broadcaster = new Broadcaster(this);
         
         heartbeatManager.start();
         messenger.setNode(this);
     }
 
     /**
-     * Start the server
+     * Start the server. Blocks the calling thread receiving messages through the messenger's transport.
      */
     public void startServer() {
     	logger.info("Node " + id + " starting server on port " + port);
-    	// Start a server socket
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            while (true) {
-            	logger.finest("Node " + id + " waiting for connections");
-                Socket client = serverSocket.accept();
-                BufferedReader reader = new BufferedReader(
-                        new InputStreamReader(client.getInputStream()));
-                String msg = reader.readLine();
-                messageHandler.handleMessage(msg);
-                client.close();
-            }
+        try {
+            messenger.getTransport().listen(port, messageHandler);
         } 
         catch (BindException e) {
             System.err.println("[Node " + id + "] Port " + port + " in use!");
@@ -76,7 +98,27 @@ public class Node {
         }
     }
 
+    /**
+     * Stops the node as if its process had died: the port and all connections are closed
+     * and its timers stop, without telling any peer. Used to simulate crashes.
+     */
+    public void stop() {
+    	logger.info("Node " + id + " stopping");
+    	heartbeatManager.stop();
+    	membershipGossip.close();
+    	messenger.close();
+    	chatManager.close();
+    }
+    
     public void setLeader(int leaderId) {
+    	setLeader(leaderId, false);
+    }
+    
+    /**
+     * @param continued true if the new leader took the chat sequence over from the previous one
+     */
+    public void setLeader(int leaderId, boolean continued) {
+        boolean changed = leaderId != currentLeader;
         this.currentLeader = leaderId;
         if (leaderId == id) {
             isLeader = true;
@@ -86,6 +128,9 @@ public class Node {
             isLeader = false;
             logger.info("Node " + id + " updated leader to Node " + leaderId);
         }
+        if (changed) {
+            chatManager.leaderChanged(leaderId, continued);
+        }
     }
     
     public int getCurrentLeader() {
@@ -127,10 +172,26 @@ public class Node {
     	return membershipManager;
     }
     
+    public MembershipGossip getMembershipGossip() {
+    	return membershipGossip;
+    }
+    
+    public Broadcaster getBroadcaster() {
+    	return broadcaster;
+    }
+    
     public Messenger getMessenger() {
     	return messenger;
     }
     
+    public Path getChatLogDir() {
+    	return chatLogDir;
+    }
+    
+    public ChatStore.FsyncPolicy getFsyncPolicy() {
+    	return fsyncPolicy;
+    }
+    
     public PeerConfig getPeerConfig() {
     	return peerConfig;
     }
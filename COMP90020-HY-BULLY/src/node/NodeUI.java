@@ -45,6 +45,7 @@ public class NodeUI extends Application {
     private TextField idField;
     private TextField portField;
     private TextField configField;
+    private CheckBox modifiedBox;
     private TextField chatInput;
 
     // Logger
@@ -70,6 +71,8 @@ public class NodeUI extends Application {
         configField = new TextField(); 
         configField.setPromptText("Config file path"); 
         configField.setPrefWidth(200);
+        
+        modifiedBox = new CheckBox("Modified Bully");
 
         chatInput = new TextField();
         chatInput.setPromptText("Type your message...");
@@ -90,22 +93,12 @@ public class NodeUI extends Application {
         // Action buttons
         sendBtn = new Button("Send");
         sendBtn.setDisable(true);
-        sendBtn.setOnAction(e -> {
-            String msg = chatInput.getText().trim();
-            if (!msg.isEmpty()) {
-                node.getChatManager().sendChat(msg);
-                chatInput.clear();
-            }
-        });
+        sendBtn.setOnAction(e -> sendInput());
         
         // Support Enter key for sending messages
         chatInput.setOnAction(e -> {
             if (!sendBtn.isDisabled()) {
-                String msg = chatInput.getText().trim();
-                if (!msg.isEmpty()) {
-                    node.getChatManager().sendChat(msg);
-                    chatInput.clear();
-                }
+                sendInput();
             }
         });
         
@@ -130,7 +123,7 @@ public class NodeUI extends Application {
         
         
         // Layout components
-        HBox topBar = new HBox(10, idField, portField, configField, startBtn);
+        HBox topBar = new HBox(10, idField, portField, configField, modifiedBox, startBtn);
         topBar.setPadding(new Insets(10));
         
         HBox bottomBar = new HBox(10, chatInput,sendBtn);
@@ -206,7 +199,9 @@ public class NodeUI extends Application {
 
 
             messenger = new Messenger(this::displayChatMessage);
-            node = new Node(id, port,isBootstrap, peerConfig, messenger);
+            ElectionManager.Algorithm algorithm = modifiedBox.isSelected()
+            		? ElectionManager.Algorithm.MODIFIED : ElectionManager.Algorithm.CLASSIC;
+            node = new Node(id, port,isBootstrap, peerConfig, messenger, algorithm);
             
             Thread serverThread = new Thread(node::startServer);
             serverThread.setDaemon(true);
@@ -242,6 +237,23 @@ public class NodeUI extends Application {
         }
     }
 
+    /**
+     * Sends the typed message; it stays in the input if it could not be sent
+     */
+    private void sendInput() {
+        String msg = chatInput.getText().trim();
+        if (msg.isEmpty()) {
+            return;
+        }
+        if (node.getChatManager().sendChat(msg)) {
+            chatInput.clear();
+        }
+        else {
+            new Alert(Alert.AlertType.WARNING, "Message not sent: it is longer than " + ChatManager.MAX_CHAT_BYTES
+                    + " bytes, or too many messages are still waiting for the leader.").show();
+        }
+    }
+
     /**
      * Display chat message in the chat area
      */
@@ -0,0 +1,183 @@
+package node;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+/**
+ * Bounded FIFO of messages waiting to be written to one peer.
+ * A virtual writer thread drains it in order whenever it is non-empty, so callers
+ * only pay for the enqueue and never for connecting to or writing to a slow peer.
+ * When a stalled peer has filled the queue, the overflow policy drops a message or, for
+ * {@link OverflowPolicy#BLOCK}, waits a bounded time and then fails the send.
+ * Only droppable frames, i.e. chats, are ever dropped: control frames such as election,
+ * heartbeat and membership messages wait for room like under BLOCK instead.
+ */
+public class OutboundQueue {
+
+	/**
+	 * What {@link #enqueue(byte[], boolean)} does when the queue is full.
+	 */
+	public enum OverflowPolicy {
+		BLOCK,			// wait up to BLOCK_TIMEOUT for the writer to make room, then fail the send; fail at once if the writer is stuck
+		DROP_NEWEST,	// reject the chat being sent
+		DROP_OLDEST		// discard the longest-waiting chat to make room
+	}
+
+	public static final int CAPACITY = 1024;
+	private static final int BLOCK_TIMEOUT = 500;		// ms
+
+	private final int port;
+	private final Transport transport;
+	private final OverflowPolicy policy;
+	private final BiConsumer<Integer, IOException> onFailure;
+
+	private final BlockingQueue<Pending> queue = new ArrayBlockingQueue<>(CAPACITY);
+	private final AtomicBoolean draining = new AtomicBoolean();
+	private volatile CompletableFuture<Void> last = CompletableFuture.completedFuture(null);
+	private volatile boolean closed = false;
+	private volatile long lastWritten = 0;		// ms timestamp of the last successful write
+	private volatile long lastDrained = System.currentTimeMillis();	// ms timestamp of the last message written or failed
+
+	public OutboundQueue(int port, Transport transport, OverflowPolicy policy,
+			BiConsumer<Integer, IOException> onFailure) {
+		this.port = port;
+		this.transport = transport;
+		this.policy = policy;
+		this.onFailure = onFailure;
+	}
+
+	/**
+	 * Queues an encoded frame for delivery behind everything already queued for this peer.
+	 * @param frame encoded message
+	 * @param droppable true if the overflow policy may drop the frame, false for control frames
+	 * @return completes once the frame is written, or exceptionally if it was dropped or failed
+	 */
+	public CompletableFuture<Void> enqueue(byte[] frame, boolean droppable) {
+		Pending p = new Pending(frame, droppable);
+		if (closed) {
+			p.future.completeExceptionally(new RejectedExecutionException("Outbound queue to port " + port + " closed"));
+			return p.future;
+		}
+
+		boolean queued = queue.offer(p);
+		if (!queued && policy == OverflowPolicy.DROP_OLDEST) {
+			while (!queued && dropOldest()) {
+				queued = queue.offer(p);
+			}
+		}
+		if (!queued && policy != OverflowPolicy.BLOCK && droppable) {
+			p.future.completeExceptionally(new RejectedExecutionException("Outbound queue to port " + port + " full"));
+			return p.future;
+		}
+		if (!queued && !offerWithin(p)) {
+			return p.future;
+		}
+
+		last = p.future;
+		if (draining.compareAndSet(false, true)) {
+			Thread.ofVirtual().name("outbound-" + port).start(this::drain);
+		}
+		return p.future;
+	}
+
+	/**
+	 * @return future of the most recently queued message; completes after everything before it
+	 */
+	public CompletableFuture<Void> lastEnqueued() {
+		return last;
+	}
+
+	/**
+	 * @return when a message was last written to the peer, in ms, or 0 if never
+	 */
+	public long lastWritten() {
+		return lastWritten;
+	}
+
+	/**
+	 * Rejects all queued and future messages, e.g. when the peer left the cluster.
+	 */
+	public void close() {
+		closed = true;
+		Pending p;
+		while ((p = queue.poll()) != null) {
+			p.future.completeExceptionally(new RejectedExecutionException("Outbound queue to port " + port + " closed"));
+		}
+	}
+
+	/**
+	 * Waits up to BLOCK_TIMEOUT for room, or not at all if the writer is stuck. Fails the send if there is none.
+	 * @return true if the frame was queued
+	 */
+	private boolean offerWithin(Pending p) {
+		try {
+			boolean stuck = System.currentTimeMillis() - lastDrained > BLOCK_TIMEOUT;
+			if (!stuck && queue.offer(p, BLOCK_TIMEOUT, TimeUnit.MILLISECONDS)) return true;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			p.future.completeExceptionally(e);
+			return false;
+		}
+		IOException full = new IOException("Outbound queue to port " + port + " full for " + BLOCK_TIMEOUT + "ms");
+		p.future.completeExceptionally(full);
+		onFailure.accept(port, full);
+		return false;
+	}
+
+	/**
+	 * Discards the longest-waiting droppable frame
+	 * @return false if only control frames are queued
+	 */
+	private boolean dropOldest() {
+		Iterator<Pending> it = queue.iterator();
+		while (it.hasNext()) {
+			Pending dropped = it.next();
+			if (dropped.droppable) {
+				it.remove();
+				dropped.future.completeExceptionally(
+						new RejectedExecutionException("Outbound queue to port " + port + " full"));
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void drain() {
+		do {
+			Pending p;
+			while ((p = queue.poll()) != null) {
+				try {
+					transport.send(port, p.frame);
+					lastWritten = System.currentTimeMillis();
+					p.future.complete(null);
+				}
+				catch (IOException e) {
+					p.future.completeExceptionally(e);
+					onFailure.accept(port, e);
+				}
+				lastDrained = System.currentTimeMillis();
+			}
+			draining.set(false);
+			// Re-check: a message may have been queued after the last poll
+		} while (!queue.isEmpty() && draining.compareAndSet(false, true));
+	}
+
+	private static class Pending {
+		private final byte[] frame;
+		private final boolean droppable;
+		private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+		Pending(byte[] frame, boolean droppable) {
+			this.frame = frame;
+			this.droppable = droppable;
+		}
+	}
+}
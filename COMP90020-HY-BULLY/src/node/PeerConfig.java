@@ -2,51 +2,125 @@ package node;
 
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * Peer configuration file handler
+ * Peer configuration file handler.
+ * The membership is an immutable {@link Snapshot} published through a single atomic reference:
+ * readers never lock and every lookup in a snapshot is an allocation-free primitive hash probe,
+ * while writers copy the current snapshot, change the copy and publish it. A loop over one
+ * snapshot sees a consistent membership even while peers join or leave.
  */
 public class PeerConfig {
 	
-	private final ConcurrentHashMap<Integer, Integer> peerMap;
+	private final AtomicReference<Snapshot> current;
 	
 	 /** Construct with an existing map (static file or discovery). */
-    public PeerConfig(ConcurrentHashMap<Integer,Integer> peerMap) {
-        this.peerMap = new ConcurrentHashMap<>(peerMap);
-
+    public PeerConfig(Map<Integer,Integer> peerMap) {
+        this.current = new AtomicReference<>(Snapshot.of(0, peerMap));
+    }
+    
+    /**
+     * @return the current membership; it never changes, later updates publish a new snapshot
+     */
+    public Snapshot snapshot() {
+    	return current.get();
     }
     
+    /**
+     * @return port of the peer, or -1 if it is not known
+     */
     public int getPort(int peerId) {
-        return peerMap.get(peerId);
+        return current.get().portOf(peerId);
     }
 
+    /**
+     * @return ids of the current peers, including this node; an unmodifiable view of one snapshot
+     */
     public Set<Integer> getPeerIds() {
-        return peerMap.keySet();
+        return current.get().ids();
     }
     
-    public synchronized Integer getIdByPort(int port) {
-        return peerMap.entrySet().stream().filter(e -> e.getValue() == port).map(Map.Entry::getKey).findFirst().orElse(null);
+    /**
+     * @return id of the peer on the port, or -1 if none
+     */
+    public int getIdByPort(int port) {
+        return current.get().idOf(port);
     }
-
-    public ConcurrentHashMap<Integer, Integer> getPeerMap() {
-    	return peerMap;
+    
+    public boolean contains(int peerId) {
+    	return current.get().contains(peerId);
     }
 
     public synchronized void addPeer(int id, int port) {
-        peerMap.put(id, port);
+    	Snapshot s = current.get();
+    	int i = Arrays.binarySearch(s.ids, id);
+    	int[] ids, ports;
+    	if (i >= 0) {
+    		if (s.ports[i] == port) return;
+    		ids = s.ids;
+    		ports = s.ports.clone();
+    		ports[i] = port;
+    	}
+    	else {
+    		i = -i - 1;
+    		ids = insert(s.ids, i, id);
+    		ports = insert(s.ports, i, port);
+    	}
+    	current.set(new Snapshot(s.version + 1, ids, ports));
     }
+    
     public synchronized void removePeer(int id) {
-        peerMap.remove(id);
+    	Snapshot s = current.get();
+    	int i = Arrays.binarySearch(s.ids, id);
+    	if (i < 0) return;
+    	current.set(new Snapshot(s.version + 1, delete(s.ids, i), delete(s.ports, i)));
+    }
+    
+    /**
+     * Removes a peer only if it is still known on the given port
+     * @return true if it was removed
+     */
+    public synchronized boolean removePeer(int id, int port) {
+    	if (current.get().portOf(id) != port) return false;
+    	removePeer(id);
+    	return true;
     }
     
     public synchronized void removePeerByPort(int port) {
-    	peerMap.entrySet().removeIf(e -> e.getValue() == port);
+    	int id = current.get().idOf(port);
+    	if (id != -1) {
+    		removePeer(id);
+    	}
+    }
+    
+    /**
+     * Replaces the whole peer list at once, e.g. with the snapshot a joining node receives.
+     */
+    public synchronized void replacePeers(Map<Integer, Integer> peers) {
+    	current.set(Snapshot.of(current.get().version + 1, peers));
+    }
+    
+    private static int[] insert(int[] a, int i, int value) {
+    	int[] b = new int[a.length + 1];
+    	System.arraycopy(a, 0, b, 0, i);
+    	b[i] = value;
+    	System.arraycopy(a, i, b, i + 1, a.length - i);
+    	return b;
+    }
+    
+    private static int[] delete(int[] a, int i) {
+    	int[] b = new int[a.length - 1];
+    	System.arraycopy(a, 0, b, 0, i);
+    	System.arraycopy(a, i + 1, b, i, a.length - i - 1);
+    	return b;
     }
 
     /**
@@ -86,4 +160,132 @@ public class PeerConfig {
         }
         return map.containsKey(id);
     }
+
+    /**
+     * Immutable id/port membership with primitive open-addressing indexes in both directions.
+     */
+    public static final class Snapshot {
+    	private static final int FREE = Integer.MIN_VALUE;	// marks an empty index slot
+
+    	private final long version;
+    	private final int[] ids;		// in ascending order
+    	private final int[] ports;		// ports[i] belongs to ids[i]
+    	private final int[] byId;		// slot pairs: key id, value port
+    	private final int[] byPort;		// slot pairs: key port, value id
+    	private final int mask;			// slots - 1
+    	private final Set<Integer> idSet;
+
+    	static Snapshot of(long version, Map<Integer, Integer> peers) {
+    		int[] ids = new int[peers.size()];
+    		int i = 0;
+    		for (int id : peers.keySet()) {
+    			ids[i++] = id;
+    		}
+    		Arrays.sort(ids);
+    		int[] ports = new int[ids.length];
+    		for (i = 0; i < ids.length; i++) {
+    			ports[i] = peers.get(ids[i]);
+    		}
+    		return new Snapshot(version, ids, ports);
+    	}
+
+    	/**
+    	 * @param ids unique, in ascending order; not copied
+    	 * @param ports ports[i] belongs to ids[i]; not copied
+    	 */
+    	Snapshot(long version, int[] ids, int[] ports) {
+    		this.version = version;
+    		this.ids = ids;
+    		this.ports = ports;
+    		int n = ids.length;
+    		// At most half full, so probes stay short
+    		int slots = Integer.highestOneBit(Math.max(2, n) * 2 - 1) << 1;
+    		mask = slots - 1;
+    		byId = new int[slots * 2];
+    		byPort = new int[slots * 2];
+    		Arrays.fill(byId, FREE);
+    		Arrays.fill(byPort, FREE);
+    		for (int i = 0; i < n; i++) {
+    			put(byId, ids[i], ports[i]);
+    			put(byPort, ports[i], ids[i]);
+    		}
+    		Set<Integer> set = new LinkedHashSet<>();
+    		for (int id : ids) set.add(id);
+    		idSet = Collections.unmodifiableSet(set);
+    	}
+
+    	/**
+    	 * @return number of the change that produced this snapshot
+    	 */
+    	public long version() {
+    		return version;
+    	}
+
+    	public int size() {
+    		return ids.length;
+    	}
+
+    	/**
+    	 * @return the i-th peer id, in ascending order
+    	 */
+    	public int idAt(int i) {
+    		return ids[i];
+    	}
+
+    	/**
+    	 * @return port of the i-th peer
+    	 */
+    	public int portAt(int i) {
+    		return ports[i];
+    	}
+
+    	/**
+    	 * @return port of the peer, or -1 if it is not known
+    	 */
+    	public int portOf(int id) {
+    		return get(byId, id);
+    	}
+
+    	/**
+    	 * @return id of the peer on the port, or -1 if none
+    	 */
+    	public int idOf(int port) {
+    		return get(byPort, port);
+    	}
+
+    	public boolean contains(int id) {
+    		return get(byId, id) != -1;
+    	}
+
+    	/**
+    	 * @return peer ids in ascending order, unmodifiable
+    	 */
+    	public Set<Integer> ids() {
+    		return idSet;
+    	}
+
+    	private void put(int[] table, int key, int value) {
+    		int slot = hash(key) & mask;
+    		while (table[slot * 2] != FREE) {
+    			slot = (slot + 1) & mask;
+    		}
+    		table[slot * 2] = key;
+    		table[slot * 2 + 1] = value;
+    	}
+
+    	private int get(int[] table, int key) {
+    		int slot = hash(key) & mask;
+    		int k;
+    		while ((k = table[slot * 2]) != FREE) {
+    			if (k == key) return table[slot * 2 + 1];
+    			slot = (slot + 1) & mask;
+    		}
+    		return -1;
+    	}
+
+    	private static int hash(int key) {
+    		int h = key * 0x9E3779B9;
+    		return h ^ (h >>> 16);
+    	}
+    }
 }
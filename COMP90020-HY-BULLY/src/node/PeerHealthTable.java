@@ -0,0 +1,202 @@
+package node;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The leader's view of how healthy each follower is. Every heartbeat sent is a probe that the
+ * follower answers with a HEARTBEAT_ACK; the table keeps per peer the time of the last ack, a
+ * smoothed round-trip time and the number of probes in a row that went unanswered.
+ * A peer that misses too many acks, or has shown no sign of life for too long, is suspected
+ * and can be evicted before a send to it ever has to time out.
+ * All times are {@link System#nanoTime()} values.
+ */
+public class PeerHealthTable {
+	private static final double RTT_GAIN = 0.125;	// weight of a new RTT sample, as for TCP's smoothed RTT
+
+	private final int maxMissedAcks;
+	private final long ackTimeout;		// ns, a probe unanswered for this long is a miss
+	private final long evictTimeout;	// ns without any sign of life
+	private final ConcurrentHashMap<Integer, PeerHealth> peers = new ConcurrentHashMap<>();
+
+	/**
+	 * @param maxMissedAcks consecutive unanswered probes after which a peer is suspected
+	 * @param ackTimeoutMillis how long an ack may take before its probe counts as missed
+	 * @param evictTimeoutMillis silence after which a peer is suspected regardless of probes
+	 */
+	public PeerHealthTable(int maxMissedAcks, long ackTimeoutMillis, long evictTimeoutMillis) {
+		this.maxMissedAcks = maxMissedAcks;
+		this.ackTimeout = TimeUnit.MILLISECONDS.toNanos(ackTimeoutMillis);
+		this.evictTimeout = TimeUnit.MILLISECONDS.toNanos(evictTimeoutMillis);
+	}
+
+	/**
+	 * Records that a heartbeat was sent to the peer. A peer seen for the first time
+	 * counts as alive now, so it gets a full timeout before it can be suspected.
+	 */
+	public void probeSent(int peerId, long nowNanos) {
+		PeerHealth h = peers.computeIfAbsent(peerId, id -> new PeerHealth(nowNanos));
+		synchronized (h) {
+			if (!h.awaitingAck) {
+				h.awaitingAck = true;
+				h.probeSent = nowNanos;
+			}
+		}
+	}
+
+	/**
+	 * Records a HEARTBEAT_ACK; the answered probe gives a round-trip sample
+	 */
+	public void ackReceived(int peerId, long nowNanos) {
+		PeerHealth h = peers.get(peerId);
+		if (h == null) return;
+		synchronized (h) {
+			if (h.awaitingAck) {
+				double rtt = nowNanos - h.probeSent;
+				h.rtt = h.rtt < 0 ? rtt : h.rtt + RTT_GAIN * (rtt - h.rtt);
+				h.awaitingAck = false;
+			}
+			h.alive(nowNanos);
+		}
+	}
+
+	/**
+	 * Records other traffic from the peer, which proves liveness as well as an ack does
+	 */
+	public void activity(int peerId, long nowNanos) {
+		PeerHealth h = peers.get(peerId);
+		if (h == null) return;
+		synchronized (h) {
+			h.alive(nowNanos);
+		}
+	}
+
+	/**
+	 * Records that a message to the peer could not be delivered. Counts as one missed ack,
+	 * however many queued messages failed within the same ack timeout.
+	 */
+	public void sendFailed(int peerId, long nowNanos) {
+		PeerHealth h = peers.computeIfAbsent(peerId, id -> new PeerHealth(nowNanos));
+		synchronized (h) {
+			if (h.lastFailure == 0 || nowNanos - h.lastFailure >= ackTimeout) {
+				h.lastFailure = nowNanos;
+				h.failures++;
+			}
+		}
+	}
+
+	/**
+	 * @return true if the peer acked or sent something within the window
+	 */
+	public boolean aliveWithin(int peerId, long nowNanos, long windowMillis) {
+		PeerHealth h = peers.get(peerId);
+		if (h == null) return false;
+		synchronized (h) {
+			return nowNanos - h.lastAck < TimeUnit.MILLISECONDS.toNanos(windowMillis);
+		}
+	}
+
+	/**
+	 * Counts overdue probes as misses and returns the peers that should be evicted
+	 * @return ids of peers over the miss limit or silent for longer than the eviction timeout
+	 */
+	public List<Integer> suspects(long nowNanos) {
+		List<Integer> suspects = new ArrayList<>();
+		for (Map.Entry<Integer, PeerHealth> e : peers.entrySet()) {
+			PeerHealth h = e.getValue();
+			synchronized (h) {
+				if (h.awaitingAck && nowNanos - h.probeSent >= ackTimeout) {
+					h.awaitingAck = false;
+					h.failures++;
+				}
+				if (h.failures >= maxMissedAcks || nowNanos - h.lastAck >= evictTimeout) {
+					suspects.add(e.getKey());
+				}
+			}
+		}
+		return suspects;
+	}
+
+	/**
+	 * Forgets a peer, e.g. once it has been evicted or left
+	 */
+	public void remove(int peerId) {
+		peers.remove(peerId);
+	}
+
+	/**
+	 * Forgets every peer, e.g. when this node becomes leader and its old view is stale
+	 */
+	public void clear() {
+		peers.clear();
+	}
+
+	/**
+	 * @return smoothed round-trip time to the peer in ms, or -1 if there is no sample yet
+	 */
+	public double rttMillis(int peerId) {
+		PeerHealth h = peers.get(peerId);
+		if (h == null) return -1;
+		synchronized (h) {
+			return h.rtt < 0 ? -1 : h.rtt / 1e6;
+		}
+	}
+
+	/**
+	 * @return unanswered probes and failed sends since the peer was last heard from
+	 */
+	public int consecutiveFailures(int peerId) {
+		PeerHealth h = peers.get(peerId);
+		if (h == null) return 0;
+		synchronized (h) {
+			return h.failures;
+		}
+	}
+
+	/**
+	 * @return number of peers being tracked
+	 */
+	public int size() {
+		return peers.size();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		long now = System.nanoTime();
+		for (Map.Entry<Integer, PeerHealth> e : peers.entrySet()) {
+			PeerHealth h = e.getValue();
+			synchronized (h) {
+				if (sb.length() > 0) sb.append(", ");
+				sb.append(e.getKey()).append(": ack ").append((now - h.lastAck) / 1000000).append("ms ago");
+				if (h.rtt >= 0) sb.append(String.format(", rtt %.2fms", h.rtt / 1e6));
+				if (h.failures > 0) sb.append(", ").append(h.failures).append(" missed");
+			}
+		}
+		return "{" + sb + "}";
+	}
+
+	/**
+	 * Health of one peer, guarded by its own monitor.
+	 */
+	private static class PeerHealth {
+		private long lastAck;
+		private long probeSent;
+		private boolean awaitingAck = false;
+		private double rtt = -1;		// ns, smoothed
+		private int failures = 0;
+		private long lastFailure = 0;		// 0 until a send has failed
+
+		PeerHealth(long nowNanos) {
+			this.lastAck = nowNanos;
+		}
+
+		void alive(long nowNanos) {
+			lastAck = nowNanos;
+			failures = 0;
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package node;
+
+import java.util.Arrays;
+
+/**
+ * Phi-accrual failure detector (Hayashibara et al.). Instead of a fixed timeout it learns the
+ * distribution of heartbeat inter-arrival times of each monitored node and reports phi, the
+ * suspicion that the node has failed: phi = -log10(P(a heartbeat arrives even later)).
+ * A node is suspected once phi exceeds the threshold, so the effective timeout follows the
+ * observed interval and jitter. Intervals are kept in a fixed-size primitive ring per node;
+ * recording a heartbeat of a known node does not allocate.
+ */
+public class PhiAccrualFailureDetector {
+	private final int windowSize;
+	private final double minStdDeviation;		// ms, keeps phi sane when intervals are very regular
+	private final double acceptablePause;		// ms added to the mean, tolerating e.g. GC pauses
+	private final double firstIntervalEstimate;	// ms assumed before real intervals are known
+	private volatile double threshold;
+
+	// Monitored nodes, guarded by this; looked up linearly since only a few are monitored
+	private int[] ids = new int[4];
+	private ArrivalWindow[] windows = new ArrivalWindow[4];
+	private int monitored = 0;
+
+	/**
+	 * @param threshold phi above which a node is suspected, e.g. 8 (a 1 in 10^8 chance of a mistake
+	 *                  if intervals were normally distributed)
+	 * @param windowSize number of recent intervals the distribution is estimated from
+	 * @param minStdDeviationMillis lower bound on the standard deviation
+	 * @param acceptablePauseMillis extra delay tolerated before suspicion starts to rise
+	 * @param firstIntervalMillis expected interval until enough heartbeats have been seen
+	 */
+	public PhiAccrualFailureDetector(double threshold, int windowSize, long minStdDeviationMillis,
+			long acceptablePauseMillis, long firstIntervalMillis) {
+		this.threshold = threshold;
+		this.windowSize = windowSize;
+		this.minStdDeviation = minStdDeviationMillis;
+		this.acceptablePause = acceptablePauseMillis;
+		this.firstIntervalEstimate = firstIntervalMillis;
+	}
+
+	/**
+	 * Records a heartbeat from a node, starting to monitor it if it is new
+	 * @param nowMillis arrival time
+	 */
+	public synchronized void heartbeat(int nodeId, long nowMillis) {
+		ArrivalWindow w = find(nodeId);
+		if (w == null) {
+			w = add(nodeId);
+			w.lastArrival = nowMillis;
+			return;
+		}
+		w.record(nowMillis - w.lastArrival);
+		w.lastArrival = nowMillis;
+	}
+
+	/**
+	 * @return suspicion level of a node at the given time, 0 if it is not monitored
+	 */
+	public synchronized double phi(int nodeId, long nowMillis) {
+		ArrivalWindow w = find(nodeId);
+		if (w == null) return 0;
+
+		double mean = w.mean() + acceptablePause;
+		double std = Math.max(w.stdDeviation(), minStdDeviation);
+		double y = (nowMillis - w.lastArrival - mean) / std;
+		// Logistic approximation of the normal CDF, accurate to ~1e-4 (Bowling et al. 2009)
+		double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+		if (nowMillis - w.lastArrival > mean) {
+			return -Math.log10(e / (1.0 + e));
+		}
+		return -Math.log10(1.0 - 1.0 / (1.0 + e));
+	}
+
+	/**
+	 * @return true if the node is monitored and its phi is above the threshold
+	 */
+	public boolean isSuspected(int nodeId, long nowMillis) {
+		return phi(nodeId, nowMillis) > threshold;
+	}
+
+	/**
+	 * @return true if heartbeats of the node are being tracked
+	 */
+	public synchronized boolean isMonitored(int nodeId) {
+		return find(nodeId) != null;
+	}
+
+	/**
+	 * @return time of the node's last heartbeat, or -1 if it is not monitored
+	 */
+	public synchronized long lastHeartbeat(int nodeId) {
+		ArrivalWindow w = find(nodeId);
+		return w == null ? -1 : w.lastArrival;
+	}
+
+	/**
+	 * Stops monitoring a node and forgets its history
+	 */
+	public synchronized void remove(int nodeId) {
+		for (int i = 0; i < monitored; i++) {
+			if (ids[i] == nodeId) {
+				monitored--;
+				ids[i] = ids[monitored];
+				windows[i] = windows[monitored];
+				windows[monitored] = null;
+				return;
+			}
+		}
+	}
+
+	public double getThreshold() {
+		return threshold;
+	}
+
+	public void setThreshold(double threshold) {
+		this.threshold = threshold;
+	}
+
+	private ArrivalWindow find(int nodeId) {
+		for (int i = 0; i < monitored; i++) {
+			if (ids[i] == nodeId) return windows[i];
+		}
+		return null;
+	}
+
+	private ArrivalWindow add(int nodeId) {
+		if (monitored == ids.length) {
+			ids = Arrays.copyOf(ids, monitored * 2);
+			windows = Arrays.copyOf(windows, monitored * 2);
+		}
+		ArrivalWindow w = new ArrivalWindow(windowSize, firstIntervalEstimate);
+		ids[monitored] = nodeId;
+		windows[monitored] = w;
+		monitored++;
+		return w;
+	}
+
+	/**
+	 * Ring of the most recent inter-arrival intervals of one node, with running sums.
+	 */
+	private static class ArrivalWindow {
+		private final double[] intervals;
+		private int next = 0;
+		private int count = 0;
+		private double sum = 0;
+		private double sumOfSquares = 0;
+		private long lastArrival;
+
+		ArrivalWindow(int size, double firstInterval) {
+			this.intervals = new double[size];
+			// Seed with a guess so phi is meaningful before real intervals arrive
+			double std = firstInterval / 4;
+			record(firstInterval - std);
+			record(firstInterval + std);
+		}
+
+		void record(double interval) {
+			if (count == intervals.length) {
+				double old = intervals[next];
+				sum -= old;
+				sumOfSquares -= old * old;
+			}
+			else {
+				count++;
+			}
+			intervals[next] = interval;
+			next = (next + 1) % intervals.length;
+			sum += interval;
+			sumOfSquares += interval * interval;
+		}
+
+		double mean() {
+			return sum / count;
+		}
+
+		double stdDeviation() {
+			double mean = mean();
+			return Math.sqrt(Math.max(0, sumOfSquares / count - mean * mean));
+		}
+	}
+}
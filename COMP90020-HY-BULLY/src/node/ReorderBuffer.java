@@ -0,0 +1,186 @@
+package node;
+
+import java.util.function.Consumer;
+
+/**
+ * Follower-side buffer restoring the leader's total order of chats.
+ * Chats are delivered strictly by sequence number; early arrivals wait in a bounded
+ * window until the gap before them is filled or given up on.
+ */
+public class ReorderBuffer {
+	private final Message[] window;
+	private long nextExpected = -1;		// -1 until synced to the current leader's stream
+	private long highestKnown = -1;		// highest sequence known to exist, from chats or the leader's heartbeat
+	private int buffered = 0;
+	private long gapSince = 0;			// ms timestamp when the current gap was first seen, 0 if none
+
+	/**
+	 * @param capacity how far ahead of the next expected sequence a chat may arrive
+	 */
+	public ReorderBuffer(int capacity) {
+		this.window = new Message[capacity];
+	}
+
+	/**
+	 * Accepts a sequenced chat and delivers every chat that is now in order
+	 * @param chat chat with a sequence number stamped by the leader
+	 * @param deliver called in sequence order for each deliverable chat
+	 */
+	public synchronized void offer(Message chat, Consumer<Message> deliver) {
+		long seq = chat.getSeq();
+		if (nextExpected < 0) {
+			nextExpected = seq;
+		}
+		if (seq < nextExpected) {
+			return;		// duplicate or already given up on
+		}
+		highestKnown = Math.max(highestKnown, seq);
+		if (seq - nextExpected >= window.length) {
+			// Too far ahead to wait for the gap: release everything up to the new window
+			skipTo(seq - window.length + 1, deliver);
+		}
+		int slot = slot(seq);
+		if (window[slot] == null) {
+			window[slot] = chat;
+			buffered++;
+		}
+		drain(deliver);
+	}
+
+	/**
+	 * Records a chat this node sequenced itself as leader, so the buffer stays in step
+	 */
+	public synchronized void markDelivered(long seq) {
+		if (seq >= nextExpected) {
+			nextExpected = seq + 1;
+			highestKnown = seq;
+		}
+	}
+
+	/**
+	 * Learns the leader's next sequence number, so chats lost at the tail of the
+	 * stream show up as a gap even when no later chat arrives
+	 * @param leaderNext next sequence number the leader will stamp
+	 */
+	public synchronized void noteLeaderNext(long leaderNext) {
+		if (nextExpected < 0 || leaderNext - 1 <= highestKnown) return;
+		highestKnown = leaderNext - 1;
+		if (gapSince == 0 && nextExpected <= highestKnown) {
+			gapSince = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * @return first and last sequence number of the oldest gap, or null if nothing is missing
+	 */
+	public synchronized long[] missingRange() {
+		if (nextExpected < 0 || nextExpected > highestKnown) return null;
+		long end = nextExpected;
+		while (end <= highestKnown && window[slot(end)] == null && end - nextExpected < window.length) {
+			end++;
+		}
+		return new long[] {nextExpected, end - 1};
+	}
+
+	/**
+	 * Gives up on the current gap and delivers buffered chats up to the next gap
+	 */
+	public synchronized void skipGap(Consumer<Message> deliver) {
+		if (buffered == 0) {
+			// Only the tail is missing
+			nextExpected = Math.max(nextExpected, highestKnown + 1);
+			gapSince = 0;
+			return;
+		}
+		long seq = nextExpected;
+		while (window[slot(seq)] == null) {
+			seq++;
+		}
+		skipTo(seq, deliver);
+		drain(deliver);
+	}
+
+	/**
+	 * Delivers whatever is buffered, in order, then expects the given sequence next
+	 * @param next next sequence number of the new stream, or -1 to sync to its first chat
+	 */
+	public synchronized void resync(long next, Consumer<Message> deliver) {
+		while (buffered > 0) {
+			skipGap(deliver);
+		}
+		nextExpected = next;
+		highestKnown = next - 1;
+		gapSince = 0;
+	}
+
+	/**
+	 * Ends the stream before the given sequence, as a new leader stamps it and everything after it
+	 * afresh. Buffered chats from it on are dropped; chats before it still missing become a gap.
+	 * @param next next sequence number the new leader will stamp
+	 */
+	public synchronized void truncate(long next) {
+		for (int i = 0; i < window.length; i++) {
+			if (window[i] != null && window[i].getSeq() >= next) {
+				window[i] = null;
+				buffered--;
+			}
+		}
+		if (nextExpected < 0) {
+			nextExpected = next;
+		}
+		highestKnown = next - 1;
+		gapSince = nextExpected <= highestKnown ? System.currentTimeMillis() : 0;
+	}
+
+	/**
+	 * @return how long the oldest unfilled gap has been waiting, or 0 if there is none
+	 */
+	public synchronized long gapAge(long now) {
+		return gapSince == 0 ? 0 : now - gapSince;
+	}
+
+	/**
+	 * @return next sequence number to be delivered, or -1 if not yet synced
+	 */
+	public synchronized long nextExpected() {
+		return nextExpected;
+	}
+
+	private void drain(Consumer<Message> deliver) {
+		long start = nextExpected;
+		Message next;
+		while (buffered > 0 && (next = window[slot(nextExpected)]) != null) {
+			window[slot(nextExpected)] = null;
+			buffered--;
+			nextExpected++;
+			deliver.accept(next);
+		}
+		if (nextExpected > highestKnown) {
+			gapSince = 0;
+		}
+		else if (gapSince == 0 || nextExpected != start) {
+			// A new gap, or an older one was partly filled: restart its clock
+			gapSince = System.currentTimeMillis();
+		}
+	}
+
+	private void skipTo(long seq, Consumer<Message> deliver) {
+		while (nextExpected < seq && buffered > 0) {
+			int slot = slot(nextExpected);
+			Message m = window[slot];
+			if (m != null) {
+				window[slot] = null;
+				buffered--;
+				deliver.accept(m);
+			}
+			nextExpected++;
+		}
+		nextExpected = Math.max(nextExpected, seq);
+		highestKnown = Math.max(highestKnown, nextExpected - 1);
+		gapSince = 0;
+	}
+
+	private int slot(long seq) {
+		return (int) Math.floorMod(seq, (long) window.length);
+	}
+}
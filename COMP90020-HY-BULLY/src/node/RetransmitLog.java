@@ -0,0 +1,46 @@
+package node;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Ring buffer of the most recent sequenced chats, so followers that detect a gap
+ * can have the missing chats resent instead of losing them, and joining nodes
+ * can be sent recent history. Every node keeps one, ready for when it leads.
+ */
+public class RetransmitLog {
+	private final AtomicReferenceArray<Message> ring;
+
+	/**
+	 * @param capacity number of most recent chats kept
+	 */
+	public RetransmitLog(int capacity) {
+		this.ring = new AtomicReferenceArray<>(capacity);
+	}
+
+	/**
+	 * Keeps a sequenced chat, overwriting the one capacity sequence numbers older
+	 */
+	public void record(Message chat) {
+		ring.set(slot(chat.getSeq()), chat);
+	}
+
+	/**
+	 * @return chats with sequence numbers from..to (inclusive) that are still held, in order
+	 */
+	public List<Message> range(long from, long to) {
+		List<Message> chats = new ArrayList<>();
+		for (long seq = Math.max(from, to - ring.length() + 1); seq <= to; seq++) {
+			Message m = ring.get(slot(seq));
+			if (m != null && m.getSeq() == seq) {
+				chats.add(m);
+			}
+		}
+		return chats;
+	}
+
+	private int slot(long seq) {
+		return (int) Math.floorMod(seq, (long) ring.length());
+	}
+}
@@ -1,9 +1,16 @@
 package node;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 
 public class ShutdownManager {
 	private static final Logger logger = Logger.getLogger(ShutdownManager.class.getName());
+	private static final int FLUSH_TIMEOUT = 2000;  // ms to wait for the goodbye messages before exiting
+	private static final int HANDOFF_TIMEOUT = 1000;  // ms to wait for the successor's COORDINATOR
+	private static final int HANDOFF_POLL = 5;       // ms
     private final Node node;
 
     public ShutdownManager(Node node) {
@@ -12,14 +19,17 @@ public class ShutdownManager {
 
     public void quit() {
     	logger.info("Node " + node.getId() + " initiating graceful shutdown");
+    	node.getMembershipGossip().leave();
         Message downMsg = new Message(
                 Message.Type.QUIT,
                 node.getId(),
                 -1,
-                "Node " + node.getId() + " is shutting down"
+                "Node " + node.getId() + " is shutting down",
+                node.getMembershipGossip().getIncarnation()
         );
 
         if (node.isLeader()) {
+        	handOff();
         	logger.info("Node " + node.getId() + " is leader, broadcasting shutdown to all peers");
             broadcastToAll(downMsg);
         } 
@@ -32,36 +42,118 @@ public class ShutdownManager {
             else {
                 int leaderPort = node.getPeerConfig().getPort(leaderId);
                 logger.info("Node " + node.getId() + " sending shutdown notification to leader (Node " + leaderId + ")");
-                node.getMessenger().sendMessage(leaderPort, downMsg);
+                if (leaderPort != -1) {
+                	node.getMessenger().sendMessage(leaderPort, downMsg);
+                }
             }
         }
+        // Sends are asynchronous - make sure they leave before the process exits
+        node.getMessenger().flush(FLUSH_TIMEOUT);
+        logger.info("Node " + node.getId() + " broadcast fan-out latency: " + node.getBroadcaster().getFanOutLatency());
+        Messenger messenger = node.getMessenger();
+        logger.info("Node " + node.getId() + " sent " + messenger.getMessagesSent() + " messages, "
+        		+ messenger.getBytesSent() + " bytes (" + messenger.getCodec().getClass().getSimpleName() + ")");
+    }
+
+    /**
+     * Leaving leader: hands leadership and the chat sequence to the highest peer, as a Bully
+     * election would, and waits until that peer has announced itself, so chat goes on without
+     * waiting for an election. The next highest peer is tried only if the HANDOFF cannot be
+     * sent. If the successor does not answer in time, the QUIT that follows leaves the cluster
+     * to elect a leader.
+     */
+    private void handOff() {
+    	int successor = -1;
+    	PeerConfig.Snapshot peers = node.getPeerConfig().snapshot();
+    	for (int i = peers.size() - 1; i >= 0 && successor == -1; i--) {
+    		int peerId = peers.idAt(i);
+    		if (peerId == node.getId()) continue;
+    		logger.info("Node " + node.getId() + " handing leadership over to Node " + peerId);
+    		CompletableFuture<Void> sent = node.getChatManager().handOff(peerId, node.getElectionManager().getLeaderTerm());
+    		if (sent == null) continue;
+    		try {
+    			sent.get(HANDOFF_TIMEOUT, TimeUnit.MILLISECONDS);
+    			successor = peerId;
+    		}
+    		catch (ExecutionException e) {
+    			logger.warning("Node " + node.getId() + " could not send HANDOFF to Node " + peerId + ": " + e.getCause());
+    		}
+    		catch (TimeoutException e) {
+    			successor = peerId;		// still queued; it may yet arrive
+    		}
+    		catch (InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    			return;
+    		}
+    	}
+    	if (successor == -1) return;
+    	
+    	long deadline = System.currentTimeMillis() + HANDOFF_TIMEOUT;
+    	try {
+    		while (node.getCurrentLeader() != successor && System.currentTimeMillis() < deadline) {
+    			Thread.sleep(HANDOFF_POLL);
+    		}
+    	}
+    	catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    	}
+    	if (node.getCurrentLeader() == successor) {
+    		logger.info("Node " + node.getId() + " handed leadership over to Node " + successor);
+    	}
+    	else {
+    		logger.warning("Node " + node.getId() + " got no COORDINATOR from Node " + successor + ", leaving the election to the cluster");
+    	}
     }
 
     private void broadcastToAll(Message msg) {
-        for (int peerId : node.getPeerConfig().getPeerIds()) {
-        	if (peerId == node.getId()) continue;    // skip myself
-        	if (peerId == msg.getSenderId()) continue;
-            int port = node.getPeerConfig().getPort(peerId);
-            node.getMessenger().sendMessage(port, msg);
-        }
-        logger.fine("Node " + node.getId() + " shutdown broadcast complete");
+        node.getBroadcaster().broadcast(msg, msg.getSenderId());
+        logger.fine("Node " + node.getId() + " shutdown broadcast queued");
+    }
+
+    /**
+     * Removes an unresponsive peer and lets the cluster know by gossip (leader role).
+     * The peer is told too, so if it was only paused it can refute and rejoin.
+     * @param peerId peer that stopped answering
+     */
+    public void evictPeer(int peerId) {
+    	if (!node.getPeerConfig().contains(peerId)) return;
+    	logger.info("Node " + node.getId() + " (leader) removing unresponsive Node " + peerId);
+    	node.getMembershipGossip().departed(peerId);
+    	removePeer(peerId);
+    	node.getMembershipGossip().tellDeparted(peerId);
     }
 
     public void handlePeerDown(Message msg) {
         int downId = msg.getSenderId();
 
         logger.info("Node " + node.getId() + " received notification that Node " + downId + " is down");
-        
-        node.getPeerConfig().removePeer(downId);
-        if (node.getCurrentLeader() == downId) {
-            logger.info("Current leader (Node " + downId + ") is down, reset leader to -1");
-            node.setLeader(-1);
+        if (node.getMembershipGossip().isStale(downId, msg.getEpoch())) {
+        	// About an earlier run of a node that has since restarted
+        	logger.info("Node " + node.getId() + " dropping stale " + msg.getType() + " about Node " + downId);
+        	node.getElectionManager().getMetrics().staleMessage();
+        	return;
         }
-        // Broadcast the node quitting to other nodes to let them know
+        
+        // Spread the node quitting to other nodes to let them know
         if (node.isLeader() && downId != node.getId()) {
-            Message rebroadcast = new Message(Message.Type.PEER_DOWN, downId, -1, "Broadcasting node " + downId + " quitting");
-            broadcastToAll(rebroadcast);
-            logger.info("Node " + node.getId() + " (leader) rebroadcasting peer departure notification");
+        	node.getMembershipGossip().departed(downId);
+            logger.info("Node " + node.getId() + " (leader) gossiping peer departure");
+        }
+        removePeer(downId);
+    }
+    
+    /**
+     * Forgets a departed peer locally: drops it from the peer list, closes its connection
+     * and resets the leader if it was the leader
+     */
+    public void removePeer(int peerId) {
+    	int port = node.getPeerConfig().getPort(peerId);
+    	if (port != -1 && node.getPeerConfig().removePeer(peerId, port)) {
+    		node.getMessenger().closePeer(port);
+    	}
+        if (node.getCurrentLeader() == peerId) {
+            logger.info("Current leader (Node " + peerId + ") is down, reset leader to -1");
+            node.setLeader(-1);
         }
     }
         
@@ -0,0 +1,61 @@
+package node;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Transport over loopback TCP: pooled outbound connections and a selector-based inbound server.
+ */
+public class TcpTransport implements Transport {
+	// One selector thread probes for every node in the process
+	private static final ConnectProber prober = new ConnectProber("connect-prober");
+
+	private final MessageCodec codec;
+	private final ConnectionPool connectionPool;
+	private volatile InboundServer inboundServer;
+
+	public TcpTransport(MessageCodec codec) {
+		this.codec = codec;
+		this.connectionPool = new ConnectionPool(codec);
+	}
+
+	@Override
+	public void listen(int port, MessageHandler handler) throws IOException {
+		inboundServer = new InboundServer(port, handler);
+		inboundServer.run();
+	}
+
+	@Override
+	public void stop() {
+		InboundServer server = inboundServer;
+		if (server != null) {
+			server.stop();
+		}
+	}
+
+	@Override
+	public void send(int targetPort, byte[] frame) throws IOException {
+		connectionPool.send(targetPort, frame);
+	}
+
+	@Override
+	public void disconnect(int targetPort) {
+		connectionPool.close(targetPort);
+	}
+
+	@Override
+	public CompletableFuture<Boolean> probe(int targetPort, int timeoutMillis) {
+		return prober.probe(targetPort, timeoutMillis);
+	}
+
+	@Override
+	public void close() {
+		stop();
+		connectionPool.closeAll();
+	}
+
+	@Override
+	public MessageCodec getCodec() {
+		return codec;
+	}
+}
@@ -0,0 +1,56 @@
+package node;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * How a node exchanges encoded frames with its peers. Peers are addressed by port.
+ * {@link TcpTransport} talks to other processes over loopback TCP; {@link LocalTransport}
+ * connects nodes running in the same JVM through in-memory queues.
+ */
+public interface Transport {
+
+	/**
+	 * Receives frames sent to a port and hands each one to the handler, until {@link #stop()}
+	 * is called. Blocks the calling thread. Frames from one sender are handled in the order sent.
+	 * @param port port to receive on
+	 * @param handler receives every frame
+	 * @throws java.net.BindException if the port is already taken
+	 * @throws IOException if receiving cannot be set up
+	 */
+	void listen(int port, MessageHandler handler) throws IOException;
+
+	/**
+	 * Stops receiving and frees the port.
+	 */
+	void stop();
+
+	/**
+	 * Delivers one frame to the peer on targetPort, behind any frame sent to it before.
+	 * @param targetPort message destination
+	 * @param frame message encoded with {@link #getCodec()}
+	 * @throws IOException if the peer cannot be reached
+	 */
+	void send(int targetPort, byte[] frame) throws IOException;
+
+	/**
+	 * Forgets the connection to a peer, e.g. when it left the cluster.
+	 */
+	void disconnect(int targetPort);
+
+	/**
+	 * Checks whether something is receiving on the port. Never blocks the caller.
+	 * @return completes with true if the port is reachable, false if not or not within the timeout
+	 */
+	CompletableFuture<Boolean> probe(int targetPort, int timeoutMillis);
+
+	/**
+	 * Stops receiving and releases every connection; the transport cannot be used afterwards.
+	 */
+	void close();
+
+	/**
+	 * @return codec frames sent through this transport are encoded with
+	 */
+	MessageCodec getCodec();
+}
@@ -0,0 +1,86 @@
+package node;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * BinaryCodec round trips for every trailer length. A message with fewer trailing fields must
+ * encode to a prefix of the same message with more of them, which is what lets older decoders
+ * read newer frames and newer decoders read older ones.
+ */
+final class BinaryCodecCheck {
+	private static final MessageCodec CODEC = MessageCodec.BINARY;
+
+	static String run() {
+		Message heartbeat = new Message(Message.Type.HEARTBEAT, 7, -1, "");
+		byte[] frame = CODEC.encode(heartbeat);
+		if (frame.length != 5) return "empty heartbeat is " + frame.length + " bytes, expected 5";
+
+		// The same chat with 0..4 trailing fields: gossip, epoch, outbox id, pending ahead
+		Message[] levels = {
+			new Message(Message.Type.CHAT, 300, 70000, "héllo 👋", null, 0, 0, 0),
+			new Message(Message.Type.CHAT, 300, 70000, "héllo 👋", "+4:8004", 0, 0, 0),
+			new Message(Message.Type.CHAT, 300, 70000, "héllo 👋", "+4:8004", -(1L << 40), 0, 0),
+			new Message(Message.Type.CHAT, 300, 70000, "héllo 👋", "+4:8004", -(1L << 40), Long.MAX_VALUE, 0),
+			new Message(Message.Type.CHAT, 300, 70000, "héllo 👋", "+4:8004", -(1L << 40), Long.MAX_VALUE, 12),
+		};
+		byte[] shorter = null;
+		for (Message m : levels) {
+			String failure = roundTrip(m);
+			if (failure != null) return failure;
+			byte[] body = body(CODEC.encode(m));
+			if (shorter != null && (body.length <= shorter.length
+					|| !Arrays.equals(shorter, Arrays.copyOf(body, shorter.length)))) {
+				return "frame with trailer " + Arrays.asList(levels).indexOf(m) + " does not extend the shorter one";
+			}
+			shorter = body;
+		}
+
+		// Later fields without the earlier ones still write the earlier ones as empty
+		for (Message m : new Message[] {
+				new Message(Message.Type.COORDINATOR, 9, 41, "", 3),
+				new Message(Message.Type.CHAT, 2, -1, "pending", 17, 0),
+				new Message(Message.Type.CHAT, 2, -1, "pending", 0, 5)}) {
+			String failure = roundTrip(m);
+			if (failure != null) return failure;
+		}
+
+		// A field appended by a newer version is ignored
+		byte[] full = body(CODEC.encode(levels[4]));
+		byte[] newer = Arrays.copyOf(full, full.length + 1);
+		newer[full.length] = 42;
+		String failure = Checks.diff(levels[4], CODEC.decode(ByteBuffer.wrap(newer)));
+		if (failure != null) return "frame with an unknown trailing field: " + failure;
+
+		try {
+			CODEC.decode(ByteBuffer.wrap(Arrays.copyOf(full, 6)));
+			return "truncated content decoded without an error";
+		}
+		catch (IllegalArgumentException expected) {}
+		return null;
+	}
+
+	/**
+	 * Decodes the message both whole and through the accessors for undecoded frames, and as JSON
+	 */
+	private static String roundTrip(Message m) {
+		byte[] frame = CODEC.encode(m);
+		String failure = Checks.diff(m, CODEC.decode(CODEC.unframe(frame)));
+		if (failure != null) return m.getType() + " round trip: " + failure;
+		ByteBuffer undecoded = CODEC.unframe(frame);
+		int position = undecoded.position();
+		if (BinaryCodec.typeOf(undecoded) != m.getType()) return m.getType() + ": typeOf returned " + BinaryCodec.typeOf(undecoded);
+		if (!java.util.Objects.equals(BinaryCodec.gossipOf(undecoded), m.getGossip())) return m.getType() + ": gossipOf returned " + BinaryCodec.gossipOf(undecoded);
+		if (BinaryCodec.epochOf(undecoded) != m.getEpoch()) return m.getType() + ": epochOf returned " + BinaryCodec.epochOf(undecoded);
+		if (undecoded.position() != position) return m.getType() + ": reading an undecoded frame moved its position";
+		failure = Checks.diff(m, MessageCodec.JSON.decode(MessageCodec.JSON.unframe(MessageCodec.JSON.encode(m))));
+		return failure == null ? null : m.getType() + " JSON round trip: " + failure;
+	}
+
+	private static byte[] body(byte[] frame) {
+		ByteBuffer body = CODEC.unframe(frame);
+		byte[] bytes = new byte[body.remaining()];
+		body.get(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,137 @@
+package node;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * ChatStore across reopenings: records spanning segments replay intact, a torn record at the
+ * tail is dropped and overwritten by the next append, and a new run hides the old one's chats.
+ */
+final class ChatStoreCheck {
+	private static final int CHATS = 120000;	// enough to roll into a second segment
+	private static final int RECORD_HEADER = 4 + 8 + 4;		// length, seq, senderId
+
+	static String run() throws IOException {
+		Path dir = Files.createTempDirectory("chatstore-check");
+		try {
+			return check(dir);
+		}
+		finally {
+			try (Stream<Path> files = Files.list(dir)) {
+				for (Path file : files.toList()) {
+					Files.deleteIfExists(file);
+				}
+			}
+			Files.deleteIfExists(dir);
+		}
+	}
+
+	private static String check(Path dir) throws IOException {
+		ChatStore store = ChatStore.open(dir, ChatStore.FsyncPolicy.PERIODIC);
+		for (int seq = 0; seq < CHATS; seq++) {
+			store.append(chat(1, seq, "first run chat " + seq, seq % 2 == 0 ? seq + 1 : 0));
+		}
+		store.append(chat(1, -1, "never sequenced", 0));
+		store.sync();
+		if (segments(dir).size() < 2) return "log of " + CHATS + " chats did not roll into a second segment";
+
+		store = ChatStore.open(dir, ChatStore.FsyncPolicy.PERIODIC);
+		if (store.lastSeq() != CHATS - 1) return "reopened log ends at " + store.lastSeq() + ", expected " + (CHATS - 1);
+		String failure = expectSeqs(store.readTail(3), CHATS - 3, CHATS - 1);
+		if (failure != null) return "tail: " + failure;
+		// Crosses from the first segment into the second
+		List<Message> chats = store.readFrom(CHATS - 20000, 20000);
+		failure = expectSeqs(chats, CHATS - 20000, CHATS - 1);
+		if (failure != null) return "range across segments: " + failure;
+		for (Message m : chats) {
+			long outboxId = m.getSeq() % 2 == 0 ? m.getSeq() + 1 : 0;
+			if (m.getOutboxId() != outboxId || !m.getContent().equals("first run chat " + m.getSeq()) || m.getSenderId() != 1) {
+				return "chat " + m.getSeq() + " replayed as " + m.getSenderId() + "/" + m.getOutboxId() + "/'" + m.getContent() + "'";
+			}
+		}
+
+		// A crash halfway through the last record: one payload byte differs from its CRC
+		Path last = segments(dir).get(segments(dir).size() - 1);
+		try (FileChannel channel = FileChannel.open(last, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, ChatStore.SEGMENT_SIZE);
+			int record = lastRecord(segment);
+			int at = record + RECORD_HEADER + 2;
+			segment.put(at, (byte) (segment.get(at) ^ 1));
+			segment.force();
+		}
+		store = ChatStore.open(dir, ChatStore.FsyncPolicy.PERIODIC);
+		if (store.lastSeq() != CHATS - 2) return "log with a torn last record ends at " + store.lastSeq() + ", expected " + (CHATS - 2);
+		store.append(chat(1, CHATS - 1, "rewritten", 0));
+		store.sync();
+		store = ChatStore.open(dir, ChatStore.FsyncPolicy.PERIODIC);
+		chats = store.readTail(2);
+		failure = expectSeqs(chats, CHATS - 2, CHATS - 1);
+		if (failure != null) return "tail after rewriting a torn record: " + failure;
+		if (!chats.get(1).getContent().equals("rewritten")) return "torn record replayed instead of its rewrite";
+
+		// A length written without its payload: the record's CRC (all zero) cannot match
+		try (FileChannel channel = FileChannel.open(last, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, ChatStore.SEGMENT_SIZE);
+			int end = lastRecord(segment);
+			end += 4 + (segment.getInt(end) & ~(1 << 30)) + 4;
+			segment.putInt(end, 1000);
+			segment.force();
+		}
+		store = ChatStore.open(dir, ChatStore.FsyncPolicy.PERIODIC);
+		if (store.lastSeq() != CHATS - 1) return "log with a torn length ends at " + store.lastSeq() + ", expected " + (CHATS - 1);
+
+		// The cluster restarted without this log: a new run from seq 0 hides the first one
+		for (int seq = 0; seq < 10; seq++) {
+			store.append(chat(2, seq, "second run chat " + seq, 0));
+		}
+		store.sync();
+		for (int reopen = 0; reopen < 2; reopen++) {
+			if (store.lastSeq() != 9) return "new run ends at " + store.lastSeq() + ", expected 9";
+			chats = store.readFrom(5, 100);
+			failure = expectSeqs(chats, 5, 9);
+			if (failure != null) return "new run: " + failure;
+			if (chats.get(0).getSenderId() != 2) return "chat from the earlier run served as current history";
+			if (!store.readFrom(10, 100).isEmpty()) return "sequence numbers beyond the new run served from the earlier run";
+			store = ChatStore.open(dir, ChatStore.FsyncPolicy.PERIODIC);
+		}
+		return null;
+	}
+
+	private static Message chat(int sender, int seq, String content, long outboxId) {
+		return new Message(Message.Type.CHAT, sender, seq, content, outboxId, 0);
+	}
+
+	private static List<Path> segments(Path dir) throws IOException {
+		try (Stream<Path> files = Files.list(dir)) {
+			return files.filter(p -> p.getFileName().toString().endsWith(".log")).sorted().toList();
+		}
+	}
+
+	/**
+	 * @return offset of the last record in a segment
+	 */
+	private static int lastRecord(MappedByteBuffer segment) {
+		int position = 0;
+		int last = 0;
+		int length;
+		while ((length = segment.getInt(position) & ~(1 << 30)) != 0) {
+			last = position;
+			position += 4 + length + 4;
+		}
+		return last;
+	}
+
+	private static String expectSeqs(List<Message> chats, long first, long last) {
+		if (chats.size() != last - first + 1) return chats.size() + " chats instead of " + (last - first + 1);
+		for (int i = 0; i < chats.size(); i++) {
+			if (chats.get(i).getSeq() != first + i) return "seq " + chats.get(i).getSeq() + " at position " + i + ", expected " + (first + i);
+		}
+		return null;
+	}
+}
@@ -0,0 +1,150 @@
+package node;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Headless failover benchmark. For each cluster size and election algorithm it starts N nodes
+ * in this process, connected in memory or over loopback TCP, lets the highest-ID node become
+ * leader, kills it and measures how long the survivors take to agree on the next leader.
+ * The survivors either notice the failure by heartbeats, typically several at once, or only
+ * the lowest-ID node starts an election straight after the kill, the worst case of Bully.
+ * <p>
+ * Usage: {@code java node.ElectionBenchmark [sizes] [basePort] [local|tcp] [classic|modified|both] [heartbeat|lowest]},
+ * e.g. {@code 3,10,50 7000 tcp modified}. The in-memory transport, both algorithms and heartbeats
+ * are the defaults; over TCP the full mesh of a large cluster can run out of file descriptors.
+ * Columns:
+ * <ul>
+ *   <li>detect: from the kill until the first survivor started an election</li>
+ *   <li>elect: from that election until every survivor knew the new leader</li>
+ *   <li>total: from the kill until every survivor knew the new leader</li>
+ *   <li>messages: ELECTION/OK/GRANT/COORDINATOR messages sent by all survivors</li>
+ *   <li>stale: election control messages the survivors dropped as out of date</li>
+ * </ul>
+ */
+public class ElectionBenchmark {
+	private static final String DEFAULT_SIZES = "3,5,10,25,50,100,200";
+	private static final int DEFAULT_BASE_PORT = 7000;
+	private static final int SETTLE_TIME = 1000;		// ms of heartbeats before the leader is killed
+	private static final int CONVERGENCE_TIMEOUT = 60000;	// ms
+
+	public static void main(String[] args) throws InterruptedException {
+		String sizes = args.length > 0 ? args[0] : DEFAULT_SIZES;
+		int basePort = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_BASE_PORT;
+		boolean tcp = args.length > 2 && args[2].equalsIgnoreCase("tcp");
+		String algorithms = args.length > 3 ? args[3] : "both";
+		boolean lowest = args.length > 4 && args[4].equalsIgnoreCase("lowest");
+		// Killed peers make every survivor log failed sends; keep the report readable
+		Logger.getLogger("").setLevel(Level.SEVERE);
+		for (java.util.logging.Handler h : Logger.getLogger("").getHandlers()) {
+			h.setLevel(Level.SEVERE);
+		}
+
+		System.out.printf("%5s %8s %10s %10s %10s %8s %8s %6s %6s %7s %6s %6s%n",
+				"N", "algo", "detect ms", "elect ms", "total ms", "ELECTION", "OK", "GRANT", "COORD", "rounds", "re-el", "stale");
+		for (String size : sizes.split(",")) {
+			int n = Integer.parseInt(size.trim());
+			for (ElectionManager.Algorithm algorithm : ElectionManager.Algorithm.values()) {
+				if (!algorithms.equalsIgnoreCase("both") && !algorithms.equalsIgnoreCase(algorithm.name())) continue;
+				run(n, basePort, tcp, algorithm, lowest);
+				basePort += n;		// fresh ports, so nothing lingers from the previous run
+			}
+		}
+		System.exit(0);
+	}
+
+	private static void run(int n, int basePort, boolean tcp, ElectionManager.Algorithm algorithm, boolean lowest)
+			throws InterruptedException {
+		String algo = algorithm.name().toLowerCase();
+		LocalTransport.Network network = new LocalTransport.Network();
+		ConcurrentHashMap<Integer, Integer> ports = new ConcurrentHashMap<>();
+		for (int id = 1; id <= n; id++) {
+			ports.put(id, basePort + id);
+		}
+		List<Node> nodes = new ArrayList<>();
+		for (int id = 1; id <= n; id++) {
+			Transport transport = tcp ? new TcpTransport(MessageCodec.BINARY) : new LocalTransport(network, MessageCodec.BINARY);
+			Node node = new Node(id, basePort + id, true, new PeerConfig(new ConcurrentHashMap<>(ports)),
+					new Messenger(chat -> {}, OutboundQueue.OverflowPolicy.BLOCK, transport), null, ChatStore.FsyncPolicy.PERIODIC,
+					algorithm);
+			Thread server = new Thread(node::startServer, "server-" + id);
+			server.setDaemon(true);
+			server.start();
+			nodes.add(node);
+		}
+
+		try {
+			Thread.sleep(200);		// let the servers bind
+			Node leader = nodes.get(n - 1);
+			leader.getElectionManager().initiateElection();
+			if (!awaitLeader(nodes, n, CONVERGENCE_TIMEOUT)) {
+				System.out.printf("%5d %8s  initial election did not converge%n", n, algo);
+				return;
+			}
+			for (Node node : nodes) {
+				node.getElectionManager().getMetrics().reset();
+				node.getHeartbeatManager().setEnabled(!lowest);
+			}
+			Thread.sleep(SETTLE_TIME);
+
+			long killed = System.nanoTime();
+			leader.stop();
+			List<Node> survivors = nodes.subList(0, n - 1);
+			if (lowest) {
+				nodes.get(0).getElectionManager().initiateElection();
+			}
+			if (!awaitLeader(survivors, n - 1, CONVERGENCE_TIMEOUT)) {
+				System.out.printf("%5d %8s  no agreement on Node %d within %ds%n", n, algo, n - 1, CONVERGENCE_TIMEOUT / 1000);
+				return;
+			}
+			long converged = System.nanoTime();
+
+			long firstElection = Long.MAX_VALUE;
+			long elections = 0, oks = 0, grants = 0, coordinators = 0, rounds = 0, reElections = 0, stale = 0;
+			for (Node node : survivors) {
+				ElectionMetrics m = node.getElectionManager().getMetrics();
+				if (m.getLastRoundStart() != 0) {
+					firstElection = Math.min(firstElection, m.getLastRoundStart());
+				}
+				elections += m.getElectionsSent();
+				oks += m.getOksSent();
+				grants += m.getGrantsSent();
+				coordinators += m.getCoordinatorsSent();
+				rounds += m.getRounds();
+				reElections += m.getReElections();
+				stale += m.getStaleDropped();
+			}
+			firstElection = Math.min(firstElection, converged);
+			System.out.printf("%5d %8s %10.1f %10.1f %10.1f %8d %8d %6d %6d %7d %6d %6d%n", n, algo,
+					(firstElection - killed) / 1e6, (converged - firstElection) / 1e6, (converged - killed) / 1e6,
+					elections, oks, grants, coordinators, rounds, reElections, stale);
+		}
+		finally {
+			for (Node node : nodes) {
+				node.stop();
+			}
+		}
+	}
+
+	/**
+	 * Waits until every given node sees the same, expected leader
+	 */
+	private static boolean awaitLeader(List<Node> nodes, int leaderId, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (System.currentTimeMillis() < deadline) {
+			boolean agreed = true;
+			for (Node node : nodes) {
+				if (node.getCurrentLeader() != leaderId) {
+					agreed = false;
+					break;
+				}
+			}
+			if (agreed) return true;
+			Thread.sleep(1);
+		}
+		return false;
+	}
+}
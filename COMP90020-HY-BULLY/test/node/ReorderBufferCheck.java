@@ -0,0 +1,130 @@
+package node;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * ReorderBuffer: shuffled and duplicated chats come out in order exactly once, gaps are
+ * reported and skipped, a chat beyond the window releases what is buffered, and truncate
+ * drops the tail a new leader stamps afresh.
+ */
+final class ReorderBufferCheck {
+	private static final int CAPACITY = 64;
+
+	static String run() {
+		List<Long> delivered = new ArrayList<>();
+		ReorderBuffer buffer = new ReorderBuffer(CAPACITY);
+
+		// Shuffled within the window, every chat sent twice
+		List<Message> chats = new ArrayList<>();
+		for (int seq = 100; seq < 100 + 10 * CAPACITY; seq++) {
+			chats.add(chat(seq));
+		}
+		Random random = new Random(7);
+		List<Message> arrivals = new ArrayList<>();
+		for (int start = 0; start < chats.size(); start += CAPACITY / 2) {
+			List<Message> part = new ArrayList<>(chats.subList(start, Math.min(chats.size(), start + CAPACITY / 2)));
+			part.addAll(part);
+			Collections.shuffle(part, random);
+			arrivals.addAll(part);
+		}
+		// The stream starts at the first chat that arrives, so make that the lowest
+		arrivals.add(0, chats.get(0));
+		for (Message m : arrivals) {
+			buffer.offer(m, c -> delivered.add((long) c.getSeq()));
+		}
+		String failure = expectRun(delivered, 100, 100 + 10 * CAPACITY - 1);
+		if (failure != null) return "shuffled stream: " + failure;
+		if (buffer.missingRange() != null || buffer.gapAge(System.currentTimeMillis()) != 0) return "gap left after a complete stream";
+
+		// A hole: 740 is lost, 741..743 wait behind it
+		long next = buffer.nextExpected();
+		delivered.clear();
+		for (long seq = next + 1; seq <= next + 3; seq++) {
+			buffer.offer(chat(seq), c -> delivered.add((long) c.getSeq()));
+		}
+		if (!delivered.isEmpty()) return "delivered " + delivered + " past a gap";
+		long[] missing = buffer.missingRange();
+		if (missing == null || missing[0] != next || missing[1] != next) return "missing range " + range(missing) + " instead of " + next + ".." + next;
+		if (buffer.gapAge(System.currentTimeMillis() + 50) < 50) return "gap age did not grow";
+		buffer.skipGap(c -> delivered.add((long) c.getSeq()));
+		failure = expectRun(delivered, next + 1, next + 3);
+		if (failure != null) return "after skipping a gap: " + failure;
+
+		// A lost tail only shows up through the leader's next sequence number
+		next = buffer.nextExpected();
+		buffer.noteLeaderNext(next + 5);
+		missing = buffer.missingRange();
+		if (missing == null || missing[0] != next || missing[1] != next + 4) return "tail missing range " + range(missing) + " instead of " + next + ".." + (next + 4);
+		delivered.clear();
+		for (long seq = next + 4; seq >= next; seq--) {
+			buffer.offer(chat(seq), c -> delivered.add((long) c.getSeq()));
+		}
+		failure = expectRun(delivered, next, next + 4);
+		if (failure != null) return "after filling the tail: " + failure;
+
+		// Far beyond the window: buffered chats are released and the gap before them given up
+		next = buffer.nextExpected();
+		delivered.clear();
+		buffer.offer(chat(next + 2), c -> delivered.add((long) c.getSeq()));
+		buffer.offer(chat(next + CAPACITY + 10), c -> delivered.add((long) c.getSeq()));
+		if (!delivered.equals(List.of(next + 2))) return "chat beyond the window released " + delivered + " instead of [" + (next + 2) + "]";
+		if (buffer.nextExpected() != next + 11) return "next expected " + buffer.nextExpected() + " after a jump, expected " + (next + 11);
+
+		// A new leader stamps from 14 on: buffered 14 and 15 are dropped, 11..12 is still a gap
+		buffer = new ReorderBuffer(CAPACITY);
+		buffer.offer(chat(10), c -> {});
+		delivered.clear();
+		for (long seq = 13; seq <= 15; seq++) {
+			buffer.offer(chat(seq), c -> delivered.add((long) c.getSeq()));
+		}
+		buffer.truncate(14);
+		missing = buffer.missingRange();
+		if (missing == null || missing[0] != 11 || missing[1] != 12) return "missing range after truncate " + range(missing) + " instead of 11..12";
+		List<Message> restamped = new ArrayList<>();
+		buffer.offer(chat(11), restamped::add);
+		buffer.offer(chat(12), restamped::add);
+		buffer.offer(new Message(Message.Type.CHAT, 2, 14, "restamped"), restamped::add);
+		for (Message m : restamped) {
+			delivered.add((long) m.getSeq());
+		}
+		failure = expectRun(delivered, 11, 14);
+		if (failure != null) return "after truncate: " + failure;
+		if (!restamped.get(3).getContent().equals("restamped")) return "old leader's chat 14 delivered after truncate";
+		if (buffer.missingRange() != null) return "gap left after truncate was filled";
+
+		// Truncating an unsynced buffer syncs it
+		buffer = new ReorderBuffer(CAPACITY);
+		buffer.truncate(50);
+		if (buffer.nextExpected() != 50) return "unsynced buffer truncated to 50 expects " + buffer.nextExpected();
+
+		// A leader's own chats and a resync
+		buffer.markDelivered(50);
+		buffer.markDelivered(51);
+		delivered.clear();
+		buffer.offer(chat(54), c -> delivered.add((long) c.getSeq()));
+		buffer.resync(1000, c -> delivered.add((long) c.getSeq()));
+		if (!delivered.equals(List.of(54L)) || buffer.nextExpected() != 1000 || buffer.missingRange() != null) {
+			return "resync delivered " + delivered + " and expects " + buffer.nextExpected();
+		}
+		return null;
+	}
+
+	private static Message chat(long seq) {
+		return new Message(Message.Type.CHAT, 1, (int) seq, "chat " + seq);
+	}
+
+	private static String expectRun(List<Long> delivered, long first, long last) {
+		if (delivered.size() != last - first + 1) return "delivered " + delivered.size() + " chats, expected " + (last - first + 1);
+		for (int i = 0; i < delivered.size(); i++) {
+			if (delivered.get(i) != first + i) return "delivered " + delivered.get(i) + " at position " + i + ", expected " + (first + i);
+		}
+		return null;
+	}
+
+	private static String range(long[] range) {
+		return range == null ? "none" : range[0] + ".." + range[1];
+	}
+}
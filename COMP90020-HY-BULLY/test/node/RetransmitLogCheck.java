@@ -0,0 +1,71 @@
+package node;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * RetransmitLog: a range holds only chats still in the ring, in order, never a stale chat
+ * from an overwritten slot, also while the leader keeps recording.
+ */
+final class RetransmitLogCheck {
+	private static final int CAPACITY = 16;
+
+	static String run() throws InterruptedException {
+		RetransmitLog log = new RetransmitLog(CAPACITY);
+		for (int seq = 0; seq < 40; seq++) {
+			log.record(chat(seq));
+		}
+		String failure = expect(log.range(0, 39), 24, 39);
+		if (failure != null) return "range past capacity: " + failure;
+		failure = expect(log.range(30, 35), 30, 35);
+		if (failure != null) return "inner range: " + failure;
+		if (!log.range(36, 35).isEmpty()) return "empty range returned chats";
+
+		// 45 is never recorded; its slot still holds 29, which must not be returned
+		for (int seq = 40; seq <= 50; seq++) {
+			if (seq != 45) log.record(chat(seq));
+		}
+		List<Message> range = log.range(40, 50);
+		if (range.size() != 10) return "range around a missing chat returned " + range.size() + " chats, expected 10";
+		for (Message m : range) {
+			if (m.getSeq() == 45 || m.getSeq() < 40) return "range around a missing chat returned seq " + m.getSeq();
+		}
+
+		// Ranges read while chats are recorded stay ordered and within bounds
+		RetransmitLog live = new RetransmitLog(CAPACITY);
+		final int total = 200000;
+		AtomicInteger recorded = new AtomicInteger();
+		Thread leader = new Thread(() -> {
+			for (int seq = 0; seq < total; seq++) {
+				live.record(chat(seq));
+				recorded.set(seq + 1);
+			}
+		}, "retransmit-check-leader");
+		leader.start();
+		while (leader.isAlive()) {
+			int last = recorded.get() - 1;
+			int first = last - CAPACITY / 2;
+			long previous = first - 1;
+			for (Message m : live.range(first, last)) {
+				if (m.getSeq() <= previous || m.getSeq() > last) {
+					return "range " + first + ".." + last + " read while recording returned seq " + m.getSeq() + " after " + previous;
+				}
+				previous = m.getSeq();
+			}
+		}
+		leader.join();
+		return expect(live.range(total - CAPACITY, total - 1), total - CAPACITY, total - 1);
+	}
+
+	private static Message chat(int seq) {
+		return new Message(Message.Type.CHAT, 1, seq, "chat " + seq);
+	}
+
+	private static String expect(List<Message> chats, int first, int last) {
+		if (chats.size() != last - first + 1) return chats.size() + " chats instead of " + (last - first + 1);
+		for (int i = 0; i < chats.size(); i++) {
+			if (chats.get(i).getSeq() != first + i) return "seq " + chats.get(i).getSeq() + " at position " + i + ", expected " + (first + i);
+		}
+		return null;
+	}
+}
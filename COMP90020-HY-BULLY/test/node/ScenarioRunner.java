@@ -0,0 +1,430 @@
+package node;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Headless fault scenarios. Each one starts N nodes in this process over the in-memory
+ * transport, lets the highest-ID node lead, injects one fault, mostly while followers chat,
+ * and then checks what the cluster promises: every node agrees on the leader and has
+ * delivered the same chats in the same order, each exactly once.
+ * <p>
+ * Usage: {@code java node.ScenarioRunner [scenarios] [size] [basePort]}, e.g. {@code quit,crash 20}.
+ * All scenarios, 10 nodes and port 8000 are the defaults. Scenarios:
+ * <ul>
+ *   <li>join: node N joins through a single seed; as the highest ID it must end up leading</li>
+ *   <li>lost-chat: the first frame carrying one of a follower's chats is lost; the author's
+ *       retry must fill the gap without reordering its chats</li>
+ *   <li>quit: the leader quits and hands over to the next highest node</li>
+ *   <li>crash: the leader stops without a word; heartbeats must detect it</li>
+ *   <li>evict: a follower is cut off until the leader evicts it, then must refute and rejoin</li>
+ * </ul>
+ * Prints one line per scenario; the exit status is 1 if any scenario failed.
+ */
+public class ScenarioRunner {
+	private static final String DEFAULT_SCENARIOS = "join,lost-chat,quit,crash,evict";
+	private static final int DEFAULT_SIZE = 10;
+	private static final int DEFAULT_BASE_PORT = 8000;
+	private static final int CHAT_INTERVAL = 10;			// ms between chats of each follower
+	private static final int MAX_SENDERS = 20;				// followers that chat, the lowest IDs
+	private static final int LOAD_TIME = 1000;				// ms of chat around each scenario's event
+	private static final int SETTLE_TIME = 3000;			// ms for retries and gap repair once chat stops
+	private static final int CONVERGENCE_TIMEOUT = 10000;	// ms
+
+	public static void main(String[] args) throws InterruptedException {
+		String scenarios = args.length > 0 ? args[0] : DEFAULT_SCENARIOS;
+		int n = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SIZE;
+		int basePort = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_BASE_PORT;
+		// Departures and faults make nodes log failed sends and suspicions; keep the report readable
+		Logger.getLogger("").setLevel(Level.SEVERE);
+		for (java.util.logging.Handler h : Logger.getLogger("").getHandlers()) {
+			h.setLevel(Level.SEVERE);
+		}
+
+		boolean allPassed = true;
+		for (String name : scenarios.split(",")) {
+			Cluster cluster = new Cluster(basePort);
+			String failure;
+			try {
+				switch (name.trim()) {
+					case "join":      failure = join(cluster, n); break;
+					case "lost-chat": failure = lostChat(cluster, n); break;
+					case "quit":      failure = leaderLeaves(cluster, n, true); break;
+					case "crash":     failure = leaderLeaves(cluster, n, false); break;
+					case "evict":     failure = evict(cluster, n); break;
+					default:
+						System.out.println("unknown scenario: " + name);
+						continue;
+				}
+			}
+			finally {
+				cluster.stop();
+			}
+			System.out.printf("%-10s %3d nodes  %s  %s%n", name.trim(), n, failure == null ? "PASS" : "FAIL",
+					failure == null ? cluster.report : failure);
+			allPassed &= failure == null;
+			basePort += n + 1;		// fresh ports, so nothing lingers from the previous scenario
+		}
+		System.exit(allPassed ? 0 : 1);
+	}
+
+	/**
+	 * Nodes 1..N-1 form the cluster, then node N joins knowing only node 1
+	 */
+	private static String join(Cluster cluster, int n) throws InterruptedException {
+		cluster.startAll(n - 1);
+		if (!cluster.awaitLeader(cluster.nodes, n - 1)) return "initial election did not converge";
+
+		Map<Integer, Integer> seed = new HashMap<>();
+		seed.put(1, cluster.port(1));
+		seed.put(n, cluster.port(n));
+		long start = System.nanoTime();
+		Node joiner = cluster.start(n, seed);
+		Thread join = new Thread(joiner.getMembershipManager()::joinCluster, "join-" + n);
+		join.setDaemon(true);
+		join.start();
+		if (!cluster.awaitMembers(n)) return "not every node knows all " + n + " members";
+		if (!cluster.awaitLeader(cluster.nodes, n)) return "joiner did not take over as the highest node";
+		double joined = (System.nanoTime() - start) / 1e6;
+
+		Chatter chatter = new Chatter(cluster.nodes.subList(0, n - 1));
+		Thread.sleep(LOAD_TIME);
+		chatter.stop();
+		Thread.sleep(SETTLE_TIME);
+		cluster.report = String.format("joined and leading after %.1fms, ", joined);
+		return cluster.check(cluster.nodes, chatter.sent);
+	}
+
+	/**
+	 * Node 1 sends ten chats; the first frame carrying the fourth is lost on the way to the leader
+	 */
+	private static String lostChat(Cluster cluster, int n) throws InterruptedException {
+		cluster.startAll(n);
+		if (!cluster.awaitLeader(cluster.nodes, n)) return "initial election did not converge";
+
+		AtomicBoolean dropped = new AtomicBoolean();
+		cluster.fault = (from, toPort, message) -> from == 1 && message != null && message.getType() == Message.Type.CHAT
+				&& message.getSeq() < 0 && message.getContent().equals("m3") && dropped.compareAndSet(false, true);
+		List<String> sent = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			cluster.nodes.get(0).getChatManager().sendChat("m" + i);
+			sent.add("1:m" + i);
+			Thread.sleep(5);
+		}
+		Thread.sleep(SETTLE_TIME);
+		if (!dropped.get()) return "the chat frame was never dropped";
+		if (!cluster.delivered.get(1).equals(sent)) return "node 1 delivered " + cluster.delivered.get(1);
+		return cluster.check(cluster.nodes, new HashSet<>(sent));
+	}
+
+	/**
+	 * The leader quits, or crashes if {@code graceful} is false, while every follower chats
+	 */
+	private static String leaderLeaves(Cluster cluster, int n, boolean graceful) throws InterruptedException {
+		cluster.startAll(n);
+		if (!cluster.awaitLeader(cluster.nodes, n)) return "initial election did not converge";
+		cluster.enableHeartbeats();
+		List<Node> survivors = cluster.nodes.subList(0, n - 1);
+
+		Chatter chatter = new Chatter(survivors);
+		Thread.sleep(LOAD_TIME);
+		long start = System.nanoTime();
+		Node leader = cluster.nodes.get(n - 1);
+		if (graceful) {
+			leader.getShutdownManager().quit();
+		}
+		leader.stop();
+		if (!cluster.awaitLeader(survivors, n - 1)) return "survivors did not agree on Node " + (n - 1);
+		double failover = (System.nanoTime() - start) / 1e6;
+		Thread.sleep(LOAD_TIME);
+		chatter.stop();
+		Thread.sleep(SETTLE_TIME);
+		cluster.report = String.format("new leader agreed after %.1fms, ", failover);
+		return cluster.check(survivors, chatter.sent);
+	}
+
+	/**
+	 * Node 2 is cut off until the leader evicts it, then the network heals
+	 */
+	private static String evict(Cluster cluster, int n) throws InterruptedException {
+		int victim = 2;
+		cluster.startAll(n);
+		if (!cluster.awaitLeader(cluster.nodes, n)) return "initial election did not converge";
+		cluster.enableHeartbeats();
+
+		long start = System.nanoTime();
+		cluster.fault = (from, toPort, message) -> from == victim || toPort == cluster.port(victim);
+		Node leader = cluster.nodes.get(n - 1);
+		long deadline = System.currentTimeMillis() + CONVERGENCE_TIMEOUT;
+		while (leader.getPeerConfig().contains(victim)) {
+			if (System.currentTimeMillis() > deadline) return "Node " + victim + " was never evicted";
+			Thread.sleep(1);
+		}
+		double evicted = (System.nanoTime() - start) / 1e6;
+		cluster.fault = null;
+		start = System.nanoTime();
+		if (!cluster.awaitMembers(n)) return "Node " + victim + " was not added back everywhere";
+		if (!cluster.awaitLeader(cluster.nodes, n)) return "nodes did not agree on Node " + n + " after the rejoin";
+		double rejoined = (System.nanoTime() - start) / 1e6;
+
+		Chatter chatter = new Chatter(cluster.nodes.subList(0, n - 1));
+		Thread.sleep(LOAD_TIME);
+		chatter.stop();
+		Thread.sleep(SETTLE_TIME);
+		cluster.report = String.format("evicted after %.1fms, rejoined after %.1fms, ", evicted, rejoined);
+		return cluster.check(cluster.nodes, chatter.sent);
+	}
+
+	/**
+	 * Decides which frames are lost in flight
+	 */
+	private interface Fault {
+		/**
+		 * @param message the frame's message, null for a reachability probe
+		 */
+		boolean drops(int fromId, int toPort, Message message);
+	}
+
+	/**
+	 * Nodes of one scenario, what each delivered and the fault currently applied to their frames
+	 */
+	private static class Cluster {
+		private final LocalTransport.Network network = new LocalTransport.Network();
+		private final int basePort;
+		private final List<Node> nodes = new ArrayList<>();
+		// Chats each node delivered, as senderId:content in delivery order
+		private final Map<Integer, List<String>> delivered = new ConcurrentHashMap<>();
+		private volatile Fault fault;		// null while the network is healthy
+		private String report = "";
+
+		Cluster(int basePort) {
+			this.basePort = basePort;
+		}
+
+		int port(int id) {
+			return basePort + id;
+		}
+
+		/**
+		 * Starts nodes 1..n, each knowing all the others, and elects node n
+		 */
+		void startAll(int n) throws InterruptedException {
+			Map<Integer, Integer> ports = new HashMap<>();
+			for (int id = 1; id <= n; id++) {
+				ports.put(id, port(id));
+			}
+			for (int id = 1; id <= n; id++) {
+				start(id, ports);
+			}
+			Thread.sleep(200);		// let the servers bind
+			nodes.get(n - 1).getElectionManager().initiateElection();
+		}
+
+		Node start(int id, Map<Integer, Integer> peers) {
+			List<String> chats = Collections.synchronizedList(new ArrayList<>());
+			delivered.put(id, chats);
+			Transport transport = new FaultyTransport(this, id, new LocalTransport(network, MessageCodec.BINARY));
+			Node node = new Node(id, port(id), true, new PeerConfig(new ConcurrentHashMap<>(peers)),
+					new Messenger(chat -> chats.add(chat.getSenderId() + ":" + chat.getContent()),
+							OutboundQueue.OverflowPolicy.BLOCK, transport),
+					null, ChatStore.FsyncPolicy.PERIODIC);
+			Thread server = new Thread(node::startServer, "server-" + id);
+			server.setDaemon(true);
+			server.start();
+			nodes.add(node);
+			return node;
+		}
+
+		void enableHeartbeats() {
+			for (Node node : nodes) {
+				node.getHeartbeatManager().setEnabled(true);
+			}
+		}
+
+		/**
+		 * Waits until every given node sees the expected leader
+		 */
+		boolean awaitLeader(List<Node> group, int leaderId) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + CONVERGENCE_TIMEOUT;
+			while (System.currentTimeMillis() < deadline) {
+				boolean agreed = true;
+				for (Node node : group) {
+					agreed &= node.getCurrentLeader() == leaderId;
+				}
+				if (agreed) return true;
+				Thread.sleep(1);
+			}
+			return false;
+		}
+
+		/**
+		 * Waits until every node has all members 1..n in its peer config
+		 */
+		boolean awaitMembers(int n) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + CONVERGENCE_TIMEOUT;
+			while (System.currentTimeMillis() < deadline) {
+				boolean complete = true;
+				for (Node node : nodes) {
+					complete &= node.getPeerConfig().getPeerIds().size() == n;
+				}
+				if (complete) return true;
+				Thread.sleep(1);
+			}
+			return false;
+		}
+
+		/**
+		 * @param sent chats that must have been delivered, as senderId:content
+		 * @return null if the group delivered the same chats in the same order, each once and
+		 *         all of {@code sent} among them, else what went wrong
+		 */
+		String check(List<Node> group, Set<String> sent) throws InterruptedException {
+			// On a busy machine some nodes may still be working through their inbox
+			long deadline = System.currentTimeMillis() + CONVERGENCE_TIMEOUT;
+			while (!sameCount(group) && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			List<String> reference = delivered.get(group.get(0).getId());
+			synchronized (reference) {
+				reference = new ArrayList<>(reference);
+			}
+			for (Node node : group) {
+				List<String> chats = delivered.get(node.getId());
+				synchronized (chats) {
+					if (!chats.equals(reference)) {
+						return "Node " + node.getId() + " delivered " + chats.size() + " chats, Node "
+								+ group.get(0).getId() + " " + reference.size() + ", or in another order";
+					}
+				}
+			}
+			Set<String> unique = new HashSet<>(reference);
+			if (unique.size() != reference.size()) {
+				return (reference.size() - unique.size()) + " chats delivered twice";
+			}
+			Set<String> missing = new HashSet<>(sent);
+			missing.removeAll(unique);
+			if (!missing.isEmpty()) {
+				return missing.size() + " of " + sent.size() + " chats never delivered";
+			}
+			report += sent.size() + " chats in the same order on " + group.size() + " nodes";
+			return null;
+		}
+
+		private boolean sameCount(List<Node> group) {
+			int count = delivered.get(group.get(0).getId()).size();
+			for (Node node : group) {
+				if (delivered.get(node.getId()).size() != count) return false;
+			}
+			return true;
+		}
+
+		void stop() {
+			for (Node node : nodes) {
+				node.stop();
+			}
+		}
+	}
+
+	/**
+	 * Lets each given node, up to {@link #MAX_SENDERS}, send a chat every {@link #CHAT_INTERVAL} until stopped
+	 */
+	private static class Chatter {
+		private final Set<String> sent = ConcurrentHashMap.newKeySet();	// chats the nodes accepted
+		private final AtomicBoolean running = new AtomicBoolean(true);
+		private final List<Thread> threads = new ArrayList<>();
+
+		Chatter(List<Node> senders) {
+			for (Node node : senders.subList(0, Math.min(senders.size(), MAX_SENDERS))) {
+				Thread t = new Thread(() -> {
+					for (int i = 0; running.get(); i++) {
+						if (node.getChatManager().sendChat("c" + i)) {
+							sent.add(node.getId() + ":c" + i);
+						}
+						try {
+							Thread.sleep(CHAT_INTERVAL);
+						}
+						catch (InterruptedException e) {
+							return;
+						}
+					}
+				}, "chat-" + node.getId());
+				t.setDaemon(true);
+				t.start();
+				threads.add(t);
+			}
+		}
+
+		void stop() throws InterruptedException {
+			running.set(false);
+			for (Thread t : threads) {
+				t.join();
+			}
+		}
+	}
+
+	/**
+	 * In-memory transport that silently loses the frames the cluster's fault picks
+	 */
+	private static class FaultyTransport implements Transport {
+		private final Cluster cluster;
+		private final int id;
+		private final LocalTransport transport;
+
+		FaultyTransport(Cluster cluster, int id, LocalTransport transport) {
+			this.cluster = cluster;
+			this.id = id;
+			this.transport = transport;
+		}
+
+		@Override
+		public void listen(int port, MessageHandler handler) throws IOException {
+			transport.listen(port, handler);
+		}
+
+		@Override
+		public void stop() {
+			transport.stop();
+		}
+
+		@Override
+		public void send(int targetPort, byte[] frame) throws IOException {
+			Fault fault = cluster.fault;
+			MessageCodec codec = transport.getCodec();
+			if (fault != null && fault.drops(id, targetPort, codec.decode(codec.unframe(frame)))) return;
+			transport.send(targetPort, frame);
+		}
+
+		@Override
+		public void disconnect(int targetPort) {
+			transport.disconnect(targetPort);
+		}
+
+		@Override
+		public CompletableFuture<Boolean> probe(int targetPort, int timeoutMillis) {
+			Fault fault = cluster.fault;
+			if (fault != null && fault.drops(id, targetPort, null)) return CompletableFuture.completedFuture(false);
+			return transport.probe(targetPort, timeoutMillis);
+		}
+
+		@Override
+		public void close() {
+			transport.close();
+		}
+
+		@Override
+		public MessageCodec getCodec() {
+			return transport.getCodec();
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package node;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Drives a PeerConfig through random adds, port moves and removals and compares every
+ * snapshot's id and port indexes against a plain map.
+ */
+final class SnapshotCheck {
+	private static final int ROUNDS = 20000;
+	private static final int ID_RANGE = 300;		// small enough that ids are often re-added and moved
+
+	static String run() {
+		Random random = new Random(42);
+		Map<Integer, Integer> expected = new HashMap<>();
+		for (int id = 1; id <= 5; id++) {
+			expected.put(id, 8000 + id);
+		}
+		PeerConfig config = new PeerConfig(new HashMap<>(expected));
+		String failure = compare(config.snapshot(), expected);
+		if (failure != null) return "initial snapshot: " + failure;
+
+		for (int round = 0; round < ROUNDS; round++) {
+			PeerConfig.Snapshot before = config.snapshot();
+			int id = 1 + random.nextInt(ID_RANGE);
+			int change = random.nextInt(4);
+			if (change == 0) {
+				config.removePeer(id);
+				expected.remove(id);
+			}
+			else if (change == 1 && expected.containsKey(id)) {
+				// Only removed while still on its old port
+				int port = expected.get(id);
+				if (config.removePeer(id, port + 1)) return "removePeer(id, port) removed peer " + id + " from another port";
+				if (!config.removePeer(id, port)) return "removePeer(id, port) kept peer " + id + " on its own port";
+				expected.remove(id);
+			}
+			else {
+				// Adds a peer or moves it; ports are reused once freed
+				int port = 9000 + random.nextInt(ID_RANGE * 2);
+				Integer holder = null;
+				for (Map.Entry<Integer, Integer> e : expected.entrySet()) {
+					if (e.getValue() == port && e.getKey() != id) holder = e.getKey();
+				}
+				if (holder != null) continue;		// one peer per port
+				config.addPeer(id, port);
+				expected.put(id, port);
+			}
+			PeerConfig.Snapshot after = config.snapshot();
+			failure = compare(after, expected);
+			if (failure != null) return "round " + round + ": " + failure;
+			if (after != before && after.version() <= before.version()) return "version did not grow in round " + round;
+		}
+
+		Map<Integer, Integer> replaced = new HashMap<>();
+		replaced.put(3, 7003);
+		replaced.put(1, 7001);
+		config.replacePeers(replaced);
+		failure = compare(config.snapshot(), replaced);
+		return failure == null ? null : "after replacePeers: " + failure;
+	}
+
+	private static String compare(PeerConfig.Snapshot s, Map<Integer, Integer> expected) {
+		if (s.size() != expected.size()) return "size " + s.size() + " instead of " + expected.size();
+		int previous = Integer.MIN_VALUE;
+		for (int i = 0; i < s.size(); i++) {
+			int id = s.idAt(i);
+			if (id <= previous) return "ids not ascending at " + i;
+			previous = id;
+			Integer port = expected.get(id);
+			if (port == null) return "unexpected peer " + id;
+			if (s.portAt(i) != port) return "portAt(" + i + ") is " + s.portAt(i) + " for peer " + id + ", expected " + port;
+			if (s.portOf(id) != port) return "portOf(" + id + ") is " + s.portOf(id) + ", expected " + port;
+			if (s.idOf(port) != id) return "idOf(" + port + ") is " + s.idOf(port) + ", expected " + id;
+		}
+		for (int id = 1; id <= ID_RANGE; id++) {
+			if (s.contains(id) != expected.containsKey(id)) return "contains(" + id + ") is " + s.contains(id);
+			if (!expected.containsKey(id) && s.portOf(id) != -1) return "portOf(" + id + ") of a missing peer is " + s.portOf(id);
+		}
+		if (!s.ids().equals(expected.keySet())) return "ids() is " + s.ids();
+		return null;
+	}
+}